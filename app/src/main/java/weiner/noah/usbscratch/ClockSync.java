@@ -0,0 +1,332 @@
+package weiner.noah.usbscratch;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+//NTP-style estimate of the offset and drift between the host clock and the device clock, so that the one way latencies
+//can be told apart instead of only seeing the round trip. Each exchange gives four timestamps, all in microseconds:
+//
+//  t1 host sends request      t2 device receives it
+//  t4 host receives reply     t3 device sends reply
+//
+//from which offset = ((t2 - t1) + (t3 - t4)) / 2 and delay = (t4 - t1) - (t3 - t2). A single exchange is only as good as
+//the symmetry of its two legs, so we keep a window of recent exchanges, throw out all but the quarter with the lowest
+//delay (the ones least disturbed by queueing), and fit a line through their offsets to get both the offset and the
+//drift rate.
+//
+//LIMITATION: four timestamps can't tell a clock offset apart from a fixed difference between the uplink and downlink
+//delays. Any such asymmetry lands in the offset as (uplink - downlink) / 2, and the split legs come out as equal halves
+//of the round trip's path delay. Queueing jitter gets filtered out, a constant asymmetry does not. If the asymmetry is
+//known from somewhere else (e.g. measured once against a device-stamped one way probe or an external reference),
+//setPathAsymmetry() corrects for it.
+//
+//t1 gets stamped on the writing thread right before the request goes out, so host queueing doesn't land in the uplink.
+//Replies get picked out of the received stream on the reading thread, and only while a request is outstanding: the
+//reply has to echo the exact t1 that was sent, and may arrive split across any number of completions. A request that
+//goes unanswered expires after a timeout, and bytes held back as a possible start of a reply get let through if nothing
+//follows them soon. The fit is published as an immutable snapshot, so it can be read from any thread
+public class ClockSync {
+    //marker byte for timestamp exchange packets, 0xFE and 0xFF are already taken
+    public static final byte SYNC = (byte) 0xFD;
+
+    //host -> device: SYNC, t1
+    public static final int REQUEST_SIZE = 9;
+
+    //device -> host: SYNC, t1 echoed back, t2, t3 (device time, microseconds)
+    public static final int REPLY_SIZE = 25;
+
+    //how long a request waits on its reply, and how long a possible start of a reply is held back with nothing after it
+    public static final long DEFAULT_REPLY_TIMEOUT_MICROS = 500000;
+    public static final long DEFAULT_HOLD_TIMEOUT_MICROS = 20000;
+
+    //offset(t) = offsetAtRef + drift * (t - refTime), in host microseconds
+    private static class Fit {
+        final long refTime;
+        final double offsetAtRef, drift;
+
+        Fit(long ref, double offset, double driftRate) {
+            refTime = ref;
+            offsetAtRef = offset;
+            drift = driftRate;
+        }
+    }
+
+    private final long[] t1s, offsets, delays;
+    private volatile long exchanges = 0;
+    private volatile Fit fit = new Fit(0, 0, 0);
+
+    //known uplink delay minus downlink delay, see the limitation above
+    private volatile long asymmetry = 0;
+
+    //request we're waiting on a reply to, stamped by the writing thread
+    private volatile long requestedT1;
+    private volatile boolean outstanding = false;
+
+    private volatile long replyTimeout = DEFAULT_REPLY_TIMEOUT_MICROS, holdTimeout = DEFAULT_HOLD_TIMEOUT_MICROS;
+    private volatile long expired = 0;
+
+    //reply matching, only touched on the reading thread: the bytes so far, and the prefix (SYNC + t1) they must match
+    private final byte[] held = new byte[REPLY_SIZE];
+    private final byte[] prefix = new byte[REQUEST_SIZE];
+    private int matched = 0;
+    private long matchT1;
+
+    //when the last completion came in while something was held
+    private long heldSince;
+    private ByteBuffer scratch = ByteBuffer.allocate(0);
+
+    public ClockSync(int windowSize) {
+        if (windowSize < 4) {
+            throw new IllegalArgumentException("Window needs at least 4 exchanges");
+        }
+        t1s = new long[windowSize];
+        offsets = new long[windowSize];
+        delays = new long[windowSize];
+    }
+
+    //a request to send. Its t1 is left blank for stamp() to fill in right before it goes out, so that time spent waiting
+    //in the send queue doesn't count as uplink
+    public byte[] request() {
+        byte[] request = new byte[REQUEST_SIZE];
+        request[0] = SYNC;
+        return request;
+    }
+
+    //stamp a request with its send time on the writing thread, and start waiting on its reply. Replaces any request
+    //still waiting on one
+    public synchronized void stamp(byte[] request, long t1) {
+        ByteBuffer.wrap(request).order(ByteOrder.LITTLE_ENDIAN).putLong(1, t1);
+        requestedT1 = t1;
+        outstanding = true;
+    }
+
+    //the request never made it out, so stop waiting on it (unless a newer one has been stamped since)
+    public synchronized void cancel(byte[] request) {
+        finish(ByteBuffer.wrap(request).order(ByteOrder.LITTLE_ENDIAN).getLong(1));
+    }
+
+    public boolean isOutstanding() {
+        return outstanding;
+    }
+
+    //how long to wait on a reply before giving up on it, and how long bytes that might start one are held back with
+    //nothing else arriving before they're let through after all. Both in microseconds
+    public void setTimeouts(long replyMicros, long holdMicros) {
+        replyTimeout = replyMicros;
+        holdTimeout = holdMicros;
+    }
+
+    public long getExpired() {
+        return expired;
+    }
+
+    //the reading thread had nothing to read. Gives up on an overdue reply, and lets through bytes that have been held
+    //back too long. Returns those bytes, in a buffer that's only valid until the next call
+    public ByteBuffer poll(long nowMicros) {
+        expire(nowMicros);
+        ByteBuffer out = scratch(0);
+        if (matched > 0 && (!outstanding || requestedT1 != matchT1 || nowMicros - heldSince >= holdTimeout)) {
+            out.put(held, 0, matched);
+            matched = 0;
+        }
+        out.flip();
+        return out;
+    }
+
+    //how long until poll() would let held bytes through, -1 if nothing is held. Reading thread only
+    public long microsUntilRelease(long nowMicros) {
+        if (matched == 0) {
+            return -1;
+        }
+        return Math.max(0, heldSince + holdTimeout - nowMicros);
+    }
+
+    //pull the reply to the outstanding request out of a received completion (position to limit of src), adding the
+    //exchange and recording its legs into stats (if not null). Returns the bytes that weren't part of a reply, which is
+    //src itself when there's nothing to look for, or else a buffer that's only valid until the next call. Bytes that
+    //might be the start of a reply are held back until a later completion settles it, or poll() gives up on them
+    public ByteBuffer extract(ByteBuffer src, long t4, LatencyStats stats) {
+        expire(t4);
+        boolean waiting = outstanding;
+        if (!waiting && matched == 0) {
+            return src;
+        }
+
+        ByteBuffer out = scratch(src.remaining());
+
+        //a newer request (or none at all) means what we were holding can't be our reply any more
+        long t1 = requestedT1;
+        if (matched > 0 && (!waiting || t1 != matchT1)) {
+            out.put(held, 0, matched);
+            matched = 0;
+        }
+        if (waiting && matched == 0) {
+            matchT1 = t1;
+            ByteBuffer.wrap(prefix).order(ByteOrder.LITTLE_ENDIAN).put(SYNC).putLong(t1);
+        }
+
+        scanning = waiting;
+        while (src.hasRemaining()) {
+            step(src.get(), out, t4, stats);
+        }
+        if (matched > 0) {
+            heldSince = t4;
+        }
+
+        out.flip();
+        return out;
+    }
+
+    private ByteBuffer scratch(int length) {
+        if (scratch.capacity() < length + REPLY_SIZE) {
+            scratch = ByteBuffer.allocate(length + REPLY_SIZE);
+        }
+        scratch.clear();
+        return scratch;
+    }
+
+    private synchronized void expire(long nowMicros) {
+        if (outstanding && nowMicros - requestedT1 > replyTimeout) {
+            outstanding = false;
+            expired++;
+        }
+    }
+
+    private synchronized void finish(long t1) {
+        if (requestedT1 == t1) {
+            outstanding = false;
+        }
+    }
+
+    //whether extract() is still looking for the reply, only meaningful during a call
+    private boolean scanning;
+
+    private void step(byte b, ByteBuffer out, long t4, LatencyStats stats) {
+        if (!scanning) {
+            out.put(b);
+        }
+        else if (matched < REQUEST_SIZE) {
+            if (b == prefix[matched]) {
+                held[matched++] = b;
+                return;
+            }
+
+            //not our reply after all. The first held byte can go through, but the reply might start anywhere after it
+            int n = matched;
+            matched = 0;
+            if (n > 0) {
+                out.put(held[0]);
+                if (n > 1) {
+                    byte[] replay = Arrays.copyOfRange(held, 1, n);
+                    for (byte r : replay) {
+                        step(r, out, t4, stats);
+                    }
+                }
+                step(b, out, t4, stats);
+            }
+            else {
+                out.put(b);
+            }
+        }
+        else {
+            held[matched++] = b;
+            if (matched == REPLY_SIZE) {
+                ByteBuffer reply = ByteBuffer.wrap(held).order(ByteOrder.LITTLE_ENDIAN);
+                long t2 = reply.getLong(REQUEST_SIZE);
+                long t3 = reply.getLong(REQUEST_SIZE + 8);
+                matched = 0;
+                scanning = false;
+                finish(matchT1);
+
+                addExchange(matchT1, t2, t3, t4);
+                if (stats != null) {
+                    recordLegs(stats, matchT1, t2, t3, t4);
+                }
+            }
+        }
+    }
+
+    //set the known uplink minus downlink delay, in microseconds, to take out of the offset. Applies to new exchanges
+    public void setPathAsymmetry(long uplinkMinusDownlinkMicros) {
+        asymmetry = uplinkMinusDownlinkMicros;
+    }
+
+    //only called on the reading thread (or a test standing in for it)
+    public void addExchange(long t1, long t2, long t3, long t4) {
+        int slot = (int) (exchanges % t1s.length);
+        t1s[slot] = t1;
+        offsets[slot] = ((t2 - t1) + (t3 - t4)) / 2 - asymmetry / 2;
+        delays[slot] = (t4 - t1) - (t3 - t2);
+        exchanges++;
+
+        refit(t1);
+    }
+
+    public long getExchanges() {
+        return exchanges;
+    }
+
+    //device clock minus host clock at the given host time
+    public double offsetAt(long hostTime) {
+        Fit f = fit;
+        return f.offsetAtRef + f.drift * (hostTime - f.refTime);
+    }
+
+    //drift of the device clock against the host clock, in parts per million
+    public double getDriftPpm() {
+        return fit.drift * 1e6;
+    }
+
+    //convert a device timestamp to host time
+    public long toHostTime(long deviceTime) {
+        Fit f = fit;
+
+        //offset moves so slowly that evaluating it at a first guess of the host time is plenty
+        long guess = deviceTime - Math.round(f.offsetAtRef);
+        return deviceTime - Math.round(f.offsetAtRef + f.drift * (guess - f.refTime));
+    }
+
+    //split one exchange into its two legs and the time the MCU spent on it, and record them along with the round trip
+    public void recordLegs(LatencyStats stats, long t1, long t2, long t3, long t4) {
+        stats.record(LatencyStats.UPLINK, toHostTime(t2) - t1);
+        stats.record(LatencyStats.PROCESSING, Math.round((t3 - t2) / (1 + fit.drift)));
+        stats.record(LatencyStats.DOWNLINK, t4 - toHostTime(t3));
+        stats.record(LatencyStats.ROUND_TRIP, t4 - t1);
+    }
+
+    private void refit(long now) {
+        int n = (int) Math.min(exchanges, t1s.length);
+
+        //keep the best quarter by delay, but at least one sample
+        long[] sortedDelays = Arrays.copyOf(delays, n);
+        Arrays.sort(sortedDelays);
+        long cutoff = sortedDelays[Math.max(0, n / 4 - 1)];
+
+        //least squares over the kept samples, relative to now to keep the numbers small
+        int kept = 0;
+        double sumX = 0, sumY = 0, sumXX = 0, sumXY = 0;
+        for (int i = 0; i < n; i++) {
+            if (delays[i] > cutoff) {
+                continue;
+            }
+            double x = t1s[i] - now;
+            double y = offsets[i];
+            kept++;
+            sumX += x;
+            sumY += y;
+            sumXX += x * x;
+            sumXY += x * y;
+        }
+
+        double denominator = kept * sumXX - sumX * sumX;
+        if (kept < 2 || denominator == 0) {
+            //not enough spread in time to see drift yet, just average
+            fit = new Fit(now, sumY / kept, 0);
+        }
+        else {
+            double drift = (kept * sumXY - sumX * sumY) / denominator;
+            fit = new Fit(now, (sumY - drift * sumX) / kept, drift);
+        }
+    }
+}
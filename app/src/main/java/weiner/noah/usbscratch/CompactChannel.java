@@ -0,0 +1,246 @@
+package weiner.noah.usbscratch;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+//One logical value stream over the serial link, which can run either raw (each value as a fixed-width signed little endian
+//integer) or compact (CompactCodec), as agreed with the device. Channels share the link through a CompactMux, which tags
+//their data and picks out negotiation replies. Negotiation is a 3-byte exchange per channel:
+//
+//  host -> device: NEGOTIATE, channel, requested mode
+//  device -> host: NEGOTIATE, channel, accepted mode
+//
+//Until a valid reply comes back, or if the device answers with anything it doesn't understand, the channel stays raw.
+//A reply is only taken while one is expected, so a stray one can't flip the mode in the middle of a stream. Nothing gets
+//sent on the channel while the reply is outstanding, so the device's switch point is exactly its reply: everything
+//before it was encoded the old way, everything after it the new way.
+//Sending side state (mode, encoder, keyframes) is guarded by the channel's own lock, which CompactMux.send() holds for
+//the whole encode and hand-off. The receiving side belongs to the reading thread
+public class CompactChannel {
+    //0xFF is already taken as the kill signal
+    public static final byte NEGOTIATE = (byte) 0xFE;
+
+    public static final int MODE_RAW = 0;
+    public static final int MODE_COMPACT = 1;
+
+    //compact frames between keyframes, so a frame lost without anyone noticing only throws the device off for a while
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 64;
+
+    private final int channel;
+    private final int rawWidth;
+    private volatile int mode = MODE_RAW;
+    private volatile boolean awaitingReply = false;
+
+    //keyframe bookkeeping, under the lock
+    private boolean keyframeRequested = false;
+    private int framesSinceKeyframe = 0;
+    private int keyframeInterval = DEFAULT_KEYFRAME_INTERVAL;
+
+    private final CompactCodec.Encoder encoder = new CompactCodec.Encoder();
+    private final CompactCodec.Decoder decoder;
+    private final CompactCodec.IValueListener listener;
+
+    //raw values split across completions
+    private final ByteBuffer rawCarry;
+
+    //channelId identifies the stream to the device, width is the size in bytes (1, 2 or 4) of a raw value
+    public CompactChannel(int channelId, int width, CompactCodec.IValueListener valueListener) {
+        if (channelId < 0 || channelId > CompactMux.MAX_CHANNEL) {
+            throw new IllegalArgumentException(String.format("Channel id must be 0 to %d", CompactMux.MAX_CHANNEL));
+        }
+        if (width != 1 && width != 2 && width != 4) {
+            throw new IllegalArgumentException("Raw width must be 1, 2 or 4 bytes");
+        }
+        channel = channelId;
+        rawWidth = width;
+        listener = valueListener;
+        decoder = new CompactCodec.Decoder(valueListener);
+        rawCarry = ByteBuffer.allocate(width).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public int getChannel() {
+        return channel;
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    public boolean isAwaitingReply() {
+        return awaitingReply;
+    }
+
+    //bytes to send to the device asking for the given mode; from now until the reply, one is expected and sends on the
+    //channel are refused
+    public synchronized byte[] negotiationRequest(int requestedMode) {
+        awaitingReply = true;
+        return new byte[]{NEGOTIATE, (byte) channel, (byte) requestedMode};
+    }
+
+    //the request never made it to the device, so no reply is coming. Also how to give up on a device that won't answer
+    public synchronized void cancelNegotiation() {
+        awaitingReply = false;
+    }
+
+    //handle the device's answer, as picked out of the stream by the mux. Returns false if no reply was expected
+    public boolean onNegotiationReply(int acceptedMode) {
+        synchronized (this) {
+            if (!awaitingReply) {
+                return false;
+            }
+            awaitingReply = false;
+            resetSending(acceptedMode);
+        }
+        resetReceiving();
+        return true;
+    }
+
+    //force a mode, e.g. when both ends are configured out of band. Resets the codec state on both sides of the channel,
+    //so call it before data is flowing on the channel, or from the reading thread
+    public void setMode(int newMode) {
+        synchronized (this) {
+            resetSending(newMode);
+        }
+        resetReceiving();
+    }
+
+    //send a keyframe at least every this many compact frames
+    public synchronized void setKeyframeInterval(int frames) {
+        if (frames <= 0) {
+            throw new IllegalArgumentException("Keyframe interval must be positive");
+        }
+        keyframeInterval = frames;
+    }
+
+    //make the next frame a keyframe, e.g. after an earlier frame was dropped on its way out
+    public synchronized void requestKeyframe() {
+        keyframeRequested = true;
+    }
+
+    //encode a batch of values for sending, flushing at the end so the device can decode all of them. Refused with an
+    //IllegalStateException while a negotiation reply is outstanding
+    public synchronized int encode(int[] values, int offset, int length, ByteBuffer out) {
+        if (awaitingReply) {
+            throw new IllegalStateException("Channel is waiting on a negotiation reply");
+        }
+        int start = out.position();
+        if (mode == MODE_COMPACT) {
+            for (int i = offset; i < offset + length; i++) {
+                encoder.write(values[i], out);
+            }
+            encoder.flush(out);
+        }
+        else {
+            ByteOrder order = out.order();
+            out.order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = offset; i < offset + length; i++) {
+                putRaw(values[i], out);
+            }
+            out.order(order);
+        }
+        return out.position() - start;
+    }
+
+    //encode a single value for sending right away
+    public byte[] encode(int value) {
+        ByteBuffer out = ByteBuffer.allocate(CompactCodec.MAX_TOKEN_BYTES);
+        encode(new int[]{value}, 0, 1, out);
+        byte[] result = new byte[out.position()];
+        out.flip();
+        out.get(result);
+        return result;
+    }
+
+    //whether the next frame has to be a keyframe: the encoder goes back to 0, so the device can pick up from there no
+    //matter what it missed. Only compact channels keep state across frames. Called under the lock
+    boolean isKeyframeDue() {
+        return mode == MODE_COMPACT && (keyframeRequested || framesSinceKeyframe >= keyframeInterval);
+    }
+
+    //start a keyframe, under the lock
+    void beginKeyframe() {
+        encoder.reset();
+    }
+
+    //encoder state to roll back to if the next frames never get sent, under the lock
+    int mark() {
+        return encoder.mark();
+    }
+
+    //the frames encoded since mark() weren't taken, so pretend they never happened. Under the lock
+    void rollback(int mark) {
+        encoder.rollback(mark);
+    }
+
+    //the frames encoded since mark() are on their way. Under the lock
+    void commit(boolean keyframe) {
+        if (keyframe) {
+            keyframeRequested = false;
+            framesSinceKeyframe = 0;
+        }
+        framesSinceKeyframe++;
+    }
+
+    //the device sent a keyframe: its next value is relative to 0 again. Reading thread only
+    void onKeyframe() {
+        resetReceiving();
+    }
+
+    //decode received bytes, handing each value to the listener
+    public void decode(byte[] data, int offset, int length) {
+        if (mode == MODE_COMPACT) {
+            decoder.decode(data, offset, length);
+            return;
+        }
+
+        for (int i = offset; i < offset + length; i++) {
+            rawCarry.put(data[i]);
+            if (!rawCarry.hasRemaining()) {
+                listener.onValue(getRaw(rawCarry));
+                rawCarry.clear();
+            }
+        }
+    }
+
+    //worst case encoded size for count values, for sizing buffers
+    public int maxEncodedSize(int count) {
+        return mode == MODE_COMPACT ? count * CompactCodec.MAX_TOKEN_BYTES : count * rawWidth;
+    }
+
+    //under the lock
+    private void resetSending(int newMode) {
+        mode = newMode == MODE_COMPACT ? MODE_COMPACT : MODE_RAW;
+        encoder.reset();
+        keyframeRequested = false;
+        framesSinceKeyframe = 0;
+    }
+
+    private void resetReceiving() {
+        decoder.reset();
+        rawCarry.clear();
+    }
+
+    private void putRaw(int value, ByteBuffer out) {
+        switch (rawWidth) {
+            case 1:
+                out.put((byte) value);
+                break;
+            case 2:
+                out.putShort((short) value);
+                break;
+            default:
+                out.putInt(value);
+        }
+    }
+
+    private int getRaw(ByteBuffer in) {
+        switch (rawWidth) {
+            case 1:
+                return in.get(0);
+            case 2:
+                return in.getShort(0);
+            default:
+                return in.getInt(0);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package weiner.noah.usbscratch;
+
+import java.nio.ByteBuffer;
+
+//Compact encoding for slowly changing integer streams (SeekBar positions, sensor readings), for when the 9600 baud line
+//is the bottleneck. Each value is sent as the difference from the previous one, zigzag-mapped so small negative deltas
+//stay small, as a base-128 varint. Runs of the same delta (a value holding still is a run of zero deltas, a steady ramp
+//is a run of some other delta) collapse into one token with a repeat count:
+//
+//  token = varint((zigzag(delta) << 1) | runFlag) [varint(runLength) if runFlag set]
+//
+//Both ends start from a previous value of 0, and go back to it on a reset, so the first value after one is sent as
+//itself. Encoder and Decoder are stateful and belong to one channel and direction
+public class CompactCodec {
+    //worst case bytes a single write() or flush() can produce: two 5-byte varints
+    public static final int MAX_TOKEN_BYTES = 10;
+
+    //longest run in one token; longer runs get split. Also caps what a corrupted count can make the decoder emit
+    public static final int MAX_RUN = 65535;
+
+    //interface for whoever wants the decoded values
+    public interface IValueListener {
+        void onValue(int value);
+    }
+
+    public static int zigzag(int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+    public static int unzigzag(int n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    //write a varint of up to 35 bits
+    static void putVarint(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    public static class Encoder {
+        private int previous = 0;
+
+        //delta being repeated and how many times we've seen it, not yet written out
+        private int runDelta = 0;
+        private int runLength = 0;
+
+        //encode one value, which may or may not produce output right away depending on whether it extends a run
+        public void write(int value, ByteBuffer out) {
+            int delta = value - previous;
+            previous = value;
+
+            if (runLength > 0 && runLength < MAX_RUN && delta == runDelta) {
+                runLength++;
+                return;
+            }
+
+            flush(out);
+            runDelta = delta;
+            runLength = 1;
+        }
+
+        //write out whatever run is pending. Call this at the end of each batch, or after every value on a control
+        //stream where the other end needs to see each value as soon as it's sent
+        public void flush(ByteBuffer out) {
+            if (runLength == 0) {
+                return;
+            }
+
+            long header = (zigzag(runDelta) & 0xFFFFFFFFL) << 1;
+            if (runLength == 1) {
+                putVarint(out, header);
+            }
+            else {
+                putVarint(out, header | 1);
+                putVarint(out, runLength);
+            }
+            runLength = 0;
+        }
+
+        public void reset() {
+            previous = 0;
+            runLength = 0;
+        }
+
+        //the state to go back to if what gets encoded from here on never reaches the other end. Only valid between
+        //batches, i.e. right after a flush()
+        public int mark() {
+            return previous;
+        }
+
+        public void rollback(int mark) {
+            previous = mark;
+            runLength = 0;
+        }
+    }
+
+    public static class Decoder {
+        private final IValueListener listener;
+        private int previous = 0;
+
+        //varint being assembled; tokens can be split across USB completions
+        private long accumulator = 0;
+        private int shift = 0;
+
+        //header of a run token whose count hasn't arrived yet
+        private boolean awaitingRunLength = false;
+        private int pendingDelta = 0;
+
+        //tokens thrown away as garbage, e.g. after a line glitch
+        private long malformed = 0;
+
+        public Decoder(IValueListener valueListener) {
+            listener = valueListener;
+        }
+
+        public void decode(ByteBuffer src) {
+            while (src.hasRemaining()) {
+                byte b = src.get();
+                accumulator |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) != 0) {
+                    shift += 7;
+                    if (shift >= 35) {
+                        //too long to be one of ours, drop it and pick up again at the next token. This runs on the
+                        //reading thread, so throwing would take the whole receiver down over one glitch
+                        resync();
+                    }
+                    continue;
+                }
+
+                long value = accumulator;
+                accumulator = 0;
+                shift = 0;
+
+                if (awaitingRunLength) {
+                    awaitingRunLength = false;
+                    if (value < 2 || value > MAX_RUN) {
+                        resync();
+                        continue;
+                    }
+                    emit(pendingDelta, (int) value);
+                }
+                else if ((value & 1) != 0) {
+                    awaitingRunLength = true;
+                    pendingDelta = unzigzag((int) (value >>> 1));
+                }
+                else {
+                    emit(unzigzag((int) (value >>> 1)), 1);
+                }
+            }
+        }
+
+        public void decode(byte[] data, int offset, int length) {
+            decode(ByteBuffer.wrap(data, offset, length));
+        }
+
+        public void reset() {
+            previous = 0;
+            accumulator = 0;
+            shift = 0;
+            awaitingRunLength = false;
+        }
+
+        public long getMalformed() {
+            return malformed;
+        }
+
+        //throw away the token in progress. The running value is kept, it's the best guess there is until the next
+        //reset (e.g. renegotiating the channel)
+        private void resync() {
+            malformed++;
+            accumulator = 0;
+            shift = 0;
+            awaitingRunLength = false;
+        }
+
+        private void emit(int delta, int count) {
+            for (int i = 0; i < count; i++) {
+                previous += delta;
+                listener.onValue(previous);
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package weiner.noah.usbscratch;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+//Carries any number of CompactChannels over the one serial link. Every chunk of channel data is framed with its channel
+//so the other end can tell the streams apart:
+//
+//  channel (0 to MAX_CHANNEL), length (1 to 255), payload
+//
+//and negotiation replies (NEGOTIATE, channel, mode) come in between frames. A frame with length 0 is a keyframe marker:
+//the channel's decoder goes back to a previous value of 0, so the value after it is sent as itself. Compact channels send
+//one every so often and after any frame that got dropped, so a lost frame can't leave the other end off for good.
+//Receiving is a byte at a time state machine, so frames and replies can be split across USB completions anywhere.
+//Channels may be registered from any thread; decode() only gets called on the reading thread
+public class CompactMux {
+    //0xFD to 0xFF are the clock sync, negotiate and kill markers
+    public static final int MAX_CHANNEL = 0xFC;
+    public static final int MAX_PAYLOAD = 255;
+
+    private static final int TAG = 0, NEGOTIATE_CHANNEL = 1, NEGOTIATE_MODE = 2, LENGTH = 3, PAYLOAD = 4;
+
+    private final AtomicReferenceArray<CompactChannel> channels = new AtomicReferenceArray<>(MAX_CHANNEL + 1);
+    private volatile int registered = 0;
+
+    //receive state
+    private int state = TAG;
+    private int frameChannel, remaining;
+    private volatile long malformed = 0;
+
+    public synchronized void register(CompactChannel channel) {
+        if (channels.getAndSet(channel.getChannel(), channel) == null) {
+            registered++;
+        }
+    }
+
+    public synchronized void unregister(CompactChannel channel) {
+        if (channels.compareAndSet(channel.getChannel(), channel, null)) {
+            registered--;
+        }
+    }
+
+    public boolean isEmpty() {
+        return registered == 0;
+    }
+
+    public CompactChannel get(int channelId) {
+        return channels.get(channelId);
+    }
+
+    //bytes skipped because they couldn't start a frame or reply, and replies nobody was waiting for
+    public long getMalformed() {
+        return malformed;
+    }
+
+    //whatever carries the frames to the device
+    public interface IFrameSink {
+        //take the frames for sending, or return false if they can't be taken
+        boolean offer(byte[] frames);
+    }
+
+    //encode values on the channel, frame them and hand them to sink, all under the channel's lock so nothing else gets
+    //encoded on it in between. The encoder only moves on if sink takes the frames, so a refused send doesn't leave the
+    //two ends apart. Returns false without encoding anything while the channel waits on a negotiation reply
+    public boolean send(CompactChannel channel, int[] values, int offset, int length, IFrameSink sink) {
+        synchronized (channel) {
+            if (channel.isAwaitingReply()) {
+                return false;
+            }
+
+            int mark = channel.mark();
+            boolean keyframe = channel.isKeyframeDue();
+            if (keyframe) {
+                channel.beginKeyframe();
+            }
+            byte[] frames = encodeFrames(channel, values, offset, length, keyframe);
+            if (!sink.offer(frames)) {
+                channel.rollback(mark);
+                return false;
+            }
+            channel.commit(keyframe);
+            return true;
+        }
+    }
+
+    //encode values on the channel and frame them, all ready for one transfer, taking it as sent
+    public byte[] frame(CompactChannel channel, int[] values, int offset, int length) {
+        final byte[][] result = new byte[1][];
+        if (!send(channel, values, offset, length, new IFrameSink() {
+            @Override
+            public boolean offer(byte[] frames) {
+                result[0] = frames;
+                return true;
+            }
+        })) {
+            throw new IllegalStateException("Channel is waiting on a negotiation reply");
+        }
+        return result[0];
+    }
+
+    private byte[] encodeFrames(CompactChannel channel, int[] values, int offset, int length, boolean keyframe) {
+        ByteBuffer encoded = ByteBuffer.allocate(channel.maxEncodedSize(length));
+        channel.encode(values, offset, length, encoded);
+        encoded.flip();
+
+        int payload = encoded.remaining();
+        int frames = (payload + MAX_PAYLOAD - 1) / MAX_PAYLOAD;
+        ByteBuffer out = ByteBuffer.allocate(payload + 2 * frames + (keyframe ? 2 : 0));
+        if (keyframe) {
+            out.put((byte) channel.getChannel()).put((byte) 0);
+        }
+        while (encoded.hasRemaining()) {
+            int n = Math.min(MAX_PAYLOAD, encoded.remaining());
+            out.put((byte) channel.getChannel()).put((byte) n);
+            int limit = encoded.limit();
+            encoded.limit(encoded.position() + n);
+            out.put(encoded);
+            encoded.limit(limit);
+        }
+        return out.array();
+    }
+
+    public void decode(byte[] data, int offset, int length) {
+        int i = offset, end = offset + length;
+        while (i < end) {
+            switch (state) {
+                case TAG: {
+                    int b = data[i++] & 0xFF;
+                    if (b == (CompactChannel.NEGOTIATE & 0xFF)) {
+                        state = NEGOTIATE_CHANNEL;
+                    }
+                    else if (b <= MAX_CHANNEL) {
+                        frameChannel = b;
+                        state = LENGTH;
+                    }
+                    else {
+                        malformed++;
+                    }
+                    break;
+                }
+                case NEGOTIATE_CHANNEL:
+                    frameChannel = data[i++] & 0xFF;
+                    state = NEGOTIATE_MODE;
+                    break;
+                case NEGOTIATE_MODE: {
+                    int mode = data[i++];
+                    CompactChannel channel = frameChannel <= MAX_CHANNEL ? channels.get(frameChannel) : null;
+                    if (channel == null || !channel.onNegotiationReply(mode)) {
+                        malformed++;
+                    }
+                    state = TAG;
+                    break;
+                }
+                case LENGTH:
+                    remaining = data[i++] & 0xFF;
+                    if (remaining == 0) {
+                        CompactChannel channel = channels.get(frameChannel);
+                        if (channel != null) {
+                            channel.onKeyframe();
+                        }
+                        state = TAG;
+                    }
+                    else {
+                        state = PAYLOAD;
+                    }
+                    break;
+                default: {
+                    //payload straight out of the chunk to its channel, no copying
+                    int n = Math.min(remaining, end - i);
+                    CompactChannel channel = channels.get(frameChannel);
+                    if (channel != null) {
+                        channel.decode(data, i, n);
+                    }
+                    i += n;
+                    remaining -= n;
+                    if (remaining == 0) {
+                        state = TAG;
+                    }
+                }
+            }
+        }
+    }
+
+    //drop any frame in progress, e.g. when a new connection starts, and have every channel start its sending over with
+    //a keyframe
+    public void reset() {
+        state = TAG;
+        for (int i = 0; i < channels.length(); i++) {
+            CompactChannel channel = channels.get(i);
+            if (channel != null) {
+                channel.requestKeyframe();
+            }
+        }
+    }
+}
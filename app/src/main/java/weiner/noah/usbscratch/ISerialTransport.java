@@ -0,0 +1,20 @@
+package weiner.noah.usbscratch;
+
+import java.nio.ByteBuffer;
+
+//The byte pipe underneath SerialEngine: USB bulk endpoints, a TCP bridge, or a fake for soak testing. Same conventions
+//as UsbDeviceConnection.bulkTransfer(): a negative return is a failure, and a write may take fewer bytes than asked
+public interface ISerialTransport {
+    //write up to length bytes starting at offset. Returns how many were taken, or -1 on failure
+    int write(byte[] data, int offset, int length, int timeoutMillis);
+
+    //read into buffer from its position, blocking up to timeoutMillis. Returns bytes read (position advanced), 0 if it
+    //timed out with nothing, or -1 on failure. Only the bytes actually transferred, never padding: binary decoders like
+    //TelemetryDecoder lose record alignment on anything extra
+    int read(ByteBuffer buffer, int timeoutMillis);
+
+    //largest single read, for sizing the read buffer
+    int getMaxPacketSize();
+
+    void close();
+}
@@ -3,6 +3,8 @@ package weiner.noah.usbscratch;
 public interface IUsbConnectionHandler {
     void onUsbStopped();
 
+    void onUsbDisconnected();
+
     void onErrorLooperRunningAlready();
 
     void onDeviceNotFound();
@@ -0,0 +1,107 @@
+package weiner.noah.usbscratch;
+
+import java.util.Arrays;
+
+//Latency bookkeeping split by leg: uplink (host -> device), processing on the MCU, downlink (device -> host) and the
+//plain round trip. Each leg keeps running count/min/max/mean over everything recorded, plus a window of the most recent
+//samples for percentiles. Safe to record from the reading thread and read from the UI thread
+public class LatencyStats {
+    public static final int UPLINK = 0;
+    public static final int PROCESSING = 1;
+    public static final int DOWNLINK = 2;
+    public static final int ROUND_TRIP = 3;
+
+    private static final String[] NAMES = {"uplink", "processing", "downlink", "round trip"};
+
+    private final Series[] series = new Series[NAMES.length];
+
+    public LatencyStats(int windowSize) {
+        for (int i = 0; i < series.length; i++) {
+            series[i] = new Series(windowSize);
+        }
+    }
+
+    public void record(int leg, long micros) {
+        series[leg].record(micros);
+    }
+
+    public Series get(int leg) {
+        return series[leg];
+    }
+
+    public void reset() {
+        for (Series s : series) {
+            s.reset();
+        }
+    }
+
+    //one line per leg that has seen samples, for the latency text view
+    public String summary() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < series.length; i++) {
+            Series s = series[i];
+            if (s.getCount() == 0) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append(String.format("%s: mean %.0f us, min %d us, p99 %d us (n=%d)",
+                    NAMES[i], s.getMean(), s.getMin(), s.percentile(99), s.getCount()));
+        }
+        return sb.toString();
+    }
+
+    public static class Series {
+        private final long[] window;
+        private long count = 0, sum = 0;
+        private long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+
+        Series(int windowSize) {
+            window = new long[windowSize];
+        }
+
+        public synchronized void record(long micros) {
+            window[(int) (count % window.length)] = micros;
+            count++;
+            sum += micros;
+            min = Math.min(min, micros);
+            max = Math.max(max, micros);
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        public synchronized long getMin() {
+            return min;
+        }
+
+        public synchronized long getMax() {
+            return max;
+        }
+
+        public synchronized double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        //p-th percentile (0-100) of the most recent window of samples, 0 if nothing has been recorded
+        public synchronized long percentile(double p) {
+            int n = (int) Math.min(count, window.length);
+            if (n == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(window, n);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(p / 100.0 * n) - 1;
+            return sorted[Math.max(0, Math.min(n - 1, index))];
+        }
+
+        public synchronized void reset() {
+            count = 0;
+            sum = 0;
+            min = Long.MAX_VALUE;
+            max = Long.MIN_VALUE;
+        }
+    }
+}
@@ -34,6 +34,11 @@ public class MainActivity extends AppCompatActivity {
             Log.e("USBTAG", "Usb has stopped");
         }
 
+        @Override
+        public void onUsbDisconnected() {
+            Log.e("USBTAG", "Usb connection lost");
+        }
+
         @Override
         public void onErrorLooperRunningAlready() {
             Log.e("USBTAG", "Looper already running");
@@ -0,0 +1,159 @@
+package weiner.noah.usbscratch;
+
+import java.nio.ByteBuffer;
+
+//Receive aggregation stage for the reading thread, modeled on the FTDI "latency timer". Instead of handing every USB
+//completion up the stack on its own, completions get collected here until either the size threshold is reached or the
+//latency timer (counted from the first byte sitting in the aggregate) runs out, and only then is one chunk dispatched.
+//The size threshold tunes itself: we keep a moving average of the incoming byte rate and aim for roughly the number of
+//bytes that will arrive within one latency timer period. A slow trickle of small packets drives the threshold down to
+//minThreshold so each packet goes out right away, while a steady burst drives it up toward the capacity so the dispatch
+//cost gets spread over big chunks.
+//NOT thread safe: meant to be owned by the single reading thread
+public class ReadAggregator {
+    //interface for whoever wants the aggregated chunks
+    public interface IChunkListener {
+        //data is only valid for the duration of the call, copy it out if you need to keep it
+        void onChunk(byte[] data, int length);
+    }
+
+    //weight given to each new rate sample in the moving average
+    private static final double RATE_ALPHA = 0.125;
+
+    private final IChunkListener listener;
+    private final byte[] pending;
+    private final int minThreshold;
+    private final long latencyTimerNanos;
+
+    private int pendingLength = 0;
+    private int threshold;
+
+    //timestamp of the first byte currently sitting in the aggregate, -1 if empty
+    private long firstArrivalNanos = -1;
+
+    //timestamp of the last completion, used for the byte rate estimate
+    private long lastArrivalNanos = -1;
+
+    //moving average of the incoming byte rate, in bytes per nanosecond
+    private double byteRate = 0;
+
+    //stats, readable by anyone for display
+    private volatile long chunksDispatched = 0, completionsSeen = 0, timerFlushes = 0;
+
+    public ReadAggregator(IChunkListener chunkListener, int capacity, int minimumThreshold, long latencyTimerMicros) {
+        if (capacity <= 0 || minimumThreshold <= 0 || minimumThreshold > capacity) {
+            throw new IllegalArgumentException("Need 0 < minimumThreshold <= capacity");
+        }
+        if (latencyTimerMicros <= 0) {
+            throw new IllegalArgumentException("Latency timer must be positive");
+        }
+
+        listener = chunkListener;
+        pending = new byte[capacity];
+        minThreshold = minimumThreshold;
+        latencyTimerNanos = latencyTimerMicros * 1000L;
+        threshold = minimumThreshold;
+    }
+
+    //add one USB completion (the bytes between position and limit of src) to the aggregate
+    public void offer(ByteBuffer src, long nowNanos) {
+        int length = src.remaining();
+        completionsSeen++;
+
+        updateRate(length, nowNanos);
+
+        while (src.hasRemaining()) {
+            if (pendingLength == 0) {
+                firstArrivalNanos = nowNanos;
+            }
+
+            //copy as much as fits, dispatching whenever the aggregate fills up
+            int n = Math.min(src.remaining(), pending.length - pendingLength);
+            src.get(pending, pendingLength, n);
+            pendingLength += n;
+
+            if (pendingLength == pending.length) {
+                dispatch();
+            }
+        }
+
+        if (pendingLength >= threshold) {
+            dispatch();
+        }
+        else {
+            poll(nowNanos);
+        }
+    }
+
+    //add one USB completion held in a plain array
+    public void offer(byte[] src, int offset, int length, long nowNanos) {
+        offer(ByteBuffer.wrap(src, offset, length), nowNanos);
+    }
+
+    //check the latency timer, dispatching the aggregate if it has run out. Returns true if something was dispatched
+    public boolean poll(long nowNanos) {
+        if (pendingLength > 0 && nowNanos - firstArrivalNanos >= latencyTimerNanos) {
+            timerFlushes++;
+            dispatch();
+            return true;
+        }
+        return false;
+    }
+
+    //how long the reader may block before the latency timer needs checking again, -1 if there's nothing pending
+    public long nanosUntilDeadline(long nowNanos) {
+        if (pendingLength == 0) {
+            return -1;
+        }
+        return Math.max(0, firstArrivalNanos + latencyTimerNanos - nowNanos);
+    }
+
+    //dispatch whatever is pending, regardless of threshold or timer (e.g. when the reader is shutting down)
+    public void flush() {
+        if (pendingLength > 0) {
+            dispatch();
+        }
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public int getPendingLength() {
+        return pendingLength;
+    }
+
+    public long getChunksDispatched() {
+        return chunksDispatched;
+    }
+
+    public long getCompletionsSeen() {
+        return completionsSeen;
+    }
+
+    public long getTimerFlushes() {
+        return timerFlushes;
+    }
+
+    private void dispatch() {
+        chunksDispatched++;
+        int length = pendingLength;
+        pendingLength = 0;
+        firstArrivalNanos = -1;
+        listener.onChunk(pending, length);
+    }
+
+    private void updateRate(int length, long nowNanos) {
+        if (lastArrivalNanos >= 0) {
+            //clamp the gap to the timer period so that one long idle stretch doesn't take forever to recover from
+            long gap = Math.min(Math.max(nowNanos - lastArrivalNanos, 1), latencyTimerNanos);
+            double sample = (double) length / gap;
+            byteRate += RATE_ALPHA * (sample - byteRate);
+
+            //aim for the number of bytes we expect to see within one timer period
+            long target = (long) (byteRate * latencyTimerNanos);
+            threshold = (int) Math.max(minThreshold, Math.min(pending.length, target));
+        }
+        lastArrivalNanos = nowNanos;
+    }
+}
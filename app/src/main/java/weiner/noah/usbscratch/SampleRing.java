@@ -0,0 +1,148 @@
+package weiner.noah.usbscratch;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+//Fixed-capacity ring of samples for one telemetry field, kept off-heap in a direct buffer in the field's own width so
+//that high-rate streams don't churn the Java heap or box anything. One writer (the decoder on the reading thread) and
+//any number of readers. Readers get Window views that read straight out of the ring without copying; a window is live,
+//so if the writer laps it while it's being read, the newer values will show through
+public class SampleRing {
+    private final SampleSchema.FieldType type;
+    private final ByteBuffer storage;
+    private final int capacity;
+
+    //total number of samples ever written, published after each write so readers never see a half-written slot counted
+    private volatile long written = 0;
+
+    public SampleRing(SampleSchema.FieldType fieldType, int sampleCapacity) {
+        if (sampleCapacity <= 0) {
+            throw new IllegalArgumentException("Ring capacity must be positive");
+        }
+        type = fieldType;
+        capacity = sampleCapacity;
+        storage = ByteBuffer.allocateDirect(capacity * type.size).order(ByteOrder.nativeOrder());
+    }
+
+    //writer side, only called by the decoder
+    void putShort(short value) {
+        storage.putShort(slot(written), value);
+        written++;
+    }
+
+    void putInt(int value) {
+        storage.putInt(slot(written), value);
+        written++;
+    }
+
+    void putFloat(float value) {
+        storage.putFloat(slot(written), value);
+        written++;
+    }
+
+    public SampleSchema.FieldType getType() {
+        return type;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getWritten() {
+        return written;
+    }
+
+    //number of samples currently held
+    public int size() {
+        return (int) Math.min(written, capacity);
+    }
+
+    //read the sample with the given sequence number (0 is the first sample ever written), widened to double
+    public double get(long sequence) {
+        int index = slot(sequence);
+        switch (type) {
+            case INT16:
+                return storage.getShort(index);
+            case INT32:
+                return storage.getInt(index);
+            default:
+                return storage.getFloat(index);
+        }
+    }
+
+    //the most recent sample
+    public double latest() {
+        long end = written;
+        if (end == 0) {
+            throw new IllegalStateException("Ring is empty");
+        }
+        return get(end - 1);
+    }
+
+    //view of the last n samples (or fewer, if that many haven't come in yet)
+    public Window last(int n) {
+        long end = written;
+        int count = (int) Math.min(Math.min(n, capacity), end);
+        return new Window(end - count, count);
+    }
+
+    private int slot(long sequence) {
+        return (int) (sequence % capacity) * type.size;
+    }
+
+    //window into the ring, from sequence start for count samples
+    public class Window {
+        private final long start;
+        private final int count;
+
+        Window(long startSequence, int sampleCount) {
+            start = startSequence;
+            count = sampleCount;
+        }
+
+        public int size() {
+            return count;
+        }
+
+        //sample i of the window, 0 being the oldest
+        public double get(int i) {
+            if (i < 0 || i >= count) {
+                throw new IndexOutOfBoundsException(String.format("Index %d out of window of %d", i, count));
+            }
+            return SampleRing.this.get(start + i);
+        }
+
+        public double min() {
+            checkNotEmpty();
+            double min = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < count; i++) {
+                min = Math.min(min, SampleRing.this.get(start + i));
+            }
+            return min;
+        }
+
+        public double max() {
+            checkNotEmpty();
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < count; i++) {
+                max = Math.max(max, SampleRing.this.get(start + i));
+            }
+            return max;
+        }
+
+        public double mean() {
+            checkNotEmpty();
+            double sum = 0;
+            for (int i = 0; i < count; i++) {
+                sum += SampleRing.this.get(start + i);
+            }
+            return sum / count;
+        }
+
+        private void checkNotEmpty() {
+            if (count == 0) {
+                throw new IllegalStateException("Window is empty");
+            }
+        }
+    }
+}
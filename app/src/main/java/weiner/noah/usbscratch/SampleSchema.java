@@ -0,0 +1,98 @@
+package weiner.noah.usbscratch;
+
+import java.nio.ByteOrder;
+
+//Layout of one fixed-size telemetry record coming off of the MCU: a list of primitive fields packed back to back with no
+//padding, all in the same byte order (little endian for the STM32 and the AVR Arduinos). Optionally each record starts
+//with a fixed sync marker and/or ends with a one byte checksum (XOR of the field bytes), which is what lets the decoder
+//notice it has slipped out of alignment (e.g. from an echoed byte landing in the stream) and find its way back
+public class SampleSchema {
+    public enum FieldType {
+        INT16(2),
+        INT32(4),
+        FLOAT32(4);
+
+        public final int size;
+
+        FieldType(int bytes) {
+            size = bytes;
+        }
+    }
+
+    private final ByteOrder order;
+    private final FieldType[] fields;
+    private final int[] offsets;
+    private final byte[] marker;
+    private final boolean checksum;
+    private final int recordSize;
+
+    //bare records, with nothing to check alignment against
+    public SampleSchema(ByteOrder byteOrder, FieldType... fieldTypes) {
+        this(byteOrder, new byte[0], false, fieldTypes);
+    }
+
+    //records framed by syncMarker (may be empty) up front and, if withChecksum, a checksum byte at the end
+    public SampleSchema(ByteOrder byteOrder, byte[] syncMarker, boolean withChecksum, FieldType... fieldTypes) {
+        if (fieldTypes.length == 0) {
+            throw new IllegalArgumentException("Schema needs at least one field");
+        }
+
+        order = byteOrder;
+        fields = fieldTypes.clone();
+        offsets = new int[fields.length];
+        marker = syncMarker.clone();
+        checksum = withChecksum;
+
+        //lay the fields out back to back, after the marker
+        int offset = marker.length;
+        for (int i = 0; i < fields.length; i++) {
+            offsets[i] = offset;
+            offset += fields[i].size;
+        }
+        recordSize = offset + (checksum ? 1 : 0);
+    }
+
+    public ByteOrder getOrder() {
+        return order;
+    }
+
+    public int getFieldCount() {
+        return fields.length;
+    }
+
+    public FieldType getFieldType(int field) {
+        return fields[field];
+    }
+
+    //byte offset of the field from the start of the record
+    public int getOffset(int field) {
+        return offsets[field];
+    }
+
+    public int getRecordSize() {
+        return recordSize;
+    }
+
+    //sync marker every record starts with, empty if none
+    public byte[] getMarker() {
+        return marker.clone();
+    }
+
+    public boolean hasChecksum() {
+        return checksum;
+    }
+
+    //whether records carry anything that lets a misaligned stream be detected
+    public boolean isFramed() {
+        return marker.length > 0 || checksum;
+    }
+
+    //checksum over the field bytes of a record, as the MCU should compute it
+    public byte checksum(byte[] record, int offset) {
+        byte sum = 0;
+        for (int i = marker.length; i < recordSize - 1; i++) {
+            sum ^= record[offset + i];
+        }
+        return sum;
+    }
+}
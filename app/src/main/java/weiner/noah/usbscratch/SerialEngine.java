@@ -0,0 +1,370 @@
+package weiner.noah.usbscratch;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+//The data transfer loops, one thread writing and one thread reading, over any ISerialTransport. Transport faults don't
+//get ignored here: short writes get the rest resent, failed writes get retried with backoff and eventually dropped,
+//failed reads back off instead of spinning, and if the transport keeps failing we call it disconnected, shut both
+//threads down and tell the listener. Plain Java, so the whole thing can be soak tested off of the device
+public class SerialEngine {
+    //interface for whoever handles received data, called on the reading thread
+    public interface IReceiveHandler {
+        //one completed read, between position and limit of data. Only valid for the duration of the call
+        void onReceive(ByteBuffer data, long receiveNanos);
+
+        //a read timed out with nothing, e.g. to let a latency timer run out
+        void onIdle(long nowNanos);
+
+        //how long the next read may block, -1 for no preference
+        long getWaitNanos(long nowNanos);
+    }
+
+    //interface for engine lifecycle events, called on whichever thread noticed
+    public interface IEngineListener {
+        //both threads have exited after stop(), whether or not the engine had disconnected first
+        void onStopped();
+
+        //transport kept failing and the engine shut itself down. stop() still needs calling to reap the threads, and
+        //may be called from right here
+        void onDisconnected();
+    }
+
+    //optional per message callback, called on the writing thread
+    public interface IMessageCallback {
+        //the message is about to go to the transport, the last chance to stamp a send time into it
+        void onWriting(byte[] data);
+
+        //the message was taken by send() but never made it out whole. Nothing after it goes out on the same stream
+        //either if it was cut short, since the far end would read that as the rest of this message
+        void onDropped(byte[] data, int bytesWritten);
+    }
+
+    //a queued message and whoever wants to hear about it
+    private static class Message {
+        final byte[] data;
+        final IMessageCallback callback;
+
+        Message(byte[] bytes, IMessageCallback messageCallback) {
+            data = bytes;
+            callback = messageCallback;
+        }
+    }
+
+    //how long either thread blocks at most before rechecking whether it should still be running
+    private static final int POLL_MILLIS = 100;
+
+    private final ISerialTransport transport;
+    private final IReceiveHandler receiveHandler;
+    private final IEngineListener engineListener;
+    private final BlockingQueue<Message> sendQueue;
+
+    //fault handling knobs
+    private int writeTimeoutMillis = 1000;
+    private int maxWriteRetries = 5;
+    private int maxConsecutiveErrors = 20;
+    private int maxBackoffMillis = 100;
+    private int stopTimeoutMillis = 1000;
+
+    //System.nanoTime() past which stop() stops draining the send queue, only meaningful once running is false
+    private volatile long drainDeadline;
+
+    private volatile boolean running = false;
+    private final AtomicBoolean disconnected = new AtomicBoolean(false);
+    private Thread writerThread, readerThread;
+
+    //counters, readable at any time
+    private final AtomicLong bytesSent = new AtomicLong(), bytesReceived = new AtomicLong();
+    private final AtomicLong shortWrites = new AtomicLong(), writeFailures = new AtomicLong();
+    private final AtomicLong droppedMessages = new AtomicLong(), readErrors = new AtomicLong();
+    private final AtomicLong handlerErrors = new AtomicLong();
+
+    public SerialEngine(ISerialTransport serialTransport, IReceiveHandler handler, IEngineListener listener, int queueCapacity) {
+        transport = serialTransport;
+        receiveHandler = handler;
+        engineListener = listener;
+        sendQueue = new ArrayBlockingQueue<>(queueCapacity);
+    }
+
+    public void setWriteTimeout(int millis) {
+        writeTimeoutMillis = millis;
+    }
+
+    //how many times in a row one message's write may fail before it's dropped
+    public void setMaxWriteRetries(int retries) {
+        maxWriteRetries = retries;
+    }
+
+    //how many failures in a row (reads, or dropped messages) before the transport is considered gone
+    public void setMaxConsecutiveErrors(int errors) {
+        maxConsecutiveErrors = errors;
+    }
+
+    public void setMaxBackoff(int millis) {
+        maxBackoffMillis = millis;
+    }
+
+    //how long stop() keeps draining the send queue before dropping what's left. stop() is typically called on the UI
+    //thread, so this bounds how long it blocks even if the device has stalled
+    public void setStopTimeout(int millis) {
+        stopTimeoutMillis = millis;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            throw new IllegalStateException("Engine already running");
+        }
+        running = true;
+
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "SerialEngine-writer");
+        readerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop();
+            }
+        }, "SerialEngine-reader");
+
+        writerThread.start();
+        readerThread.start();
+    }
+
+    //queue data for sending. Returns false if the engine isn't running or the queue is full, in which case it's dropped
+    public boolean send(byte[] data) {
+        return send(data, null);
+    }
+
+    //queue data for sending, telling callback (if not null) if it gets dropped after being taken
+    public boolean send(byte[] data, IMessageCallback callback) {
+        if (!running) {
+            return false;
+        }
+        if (!sendQueue.offer(new Message(data, callback))) {
+            droppedMessages.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    //stop both threads, letting the writer drain whatever is already queued first, for up to the stop timeout. Blocks
+    //until they've exited
+    public void stop() {
+        Thread writer, reader;
+        synchronized (this) {
+            if (writerThread == null) {
+                return;
+            }
+            drainDeadline = System.nanoTime() + stopTimeoutMillis * 1000000L;
+            running = false;
+            writer = writerThread;
+            reader = readerThread;
+            writerThread = null;
+            readerThread = null;
+        }
+
+        //stop() may get called from onDisconnected() on one of our own threads, which mustn't wait on itself
+        try {
+            if (writer != Thread.currentThread()) {
+                writer.join();
+            }
+            if (reader != Thread.currentThread()) {
+                reader.join();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        engineListener.onStopped();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public boolean isDisconnected() {
+        return disconnected.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long getShortWrites() {
+        return shortWrites.get();
+    }
+
+    public long getWriteFailures() {
+        return writeFailures.get();
+    }
+
+    public long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+
+    //exceptions thrown by the receive handler, which got counted and skipped rather than killing the reader
+    public long getHandlerErrors() {
+        return handlerErrors.get();
+    }
+
+    public long getReadErrors() {
+        return readErrors.get();
+    }
+
+    private void writeLoop() {
+        int failedMessages = 0;
+
+        //keep going after stop() until the queue is drained or the stop timeout runs out, but not after a disconnect
+        while ((running || (!sendQueue.isEmpty() && drainMillisLeft() > 0)) && !disconnected.get()) {
+            Message message;
+            try {
+                message = sendQueue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e) {
+                break;
+            }
+            if (message == null) {
+                continue;
+            }
+
+            if (message.callback != null) {
+                message.callback.onWriting(message.data);
+            }
+            int written = writeFully(message.data);
+            if (written == message.data.length) {
+                failedMessages = 0;
+                continue;
+            }
+
+            droppedMessages.incrementAndGet();
+            if (running && (written > 0 || ++failedMessages >= maxConsecutiveErrors)) {
+                //a message cut short leaves the far end in the middle of it, so there's no carrying on with this stream
+                disconnect();
+            }
+            if (message.callback != null) {
+                message.callback.onDropped(message.data, written);
+            }
+        }
+
+        //whatever is left after a disconnect or the stop timeout never goes out
+        Message message;
+        while ((message = sendQueue.poll()) != null) {
+            droppedMessages.incrementAndGet();
+            if (message.callback != null) {
+                message.callback.onDropped(message.data, 0);
+            }
+        }
+    }
+
+    //write all of data, resending the rest after a short write. Returns how much went out, less than all if it had to
+    //give up
+    private int writeFully(byte[] data) {
+        int offset = 0, failures = 0;
+        while (offset < data.length) {
+            //once stopping, no single write may run past the stop timeout either
+            int timeout = writeTimeoutMillis;
+            if (!running) {
+                long left = drainMillisLeft();
+                if (left <= 0) {
+                    return offset;
+                }
+                timeout = (int) Math.min(timeout, left);
+            }
+
+            int n = transport.write(data, offset, data.length - offset, timeout);
+            if (n > 0) {
+                if (n < data.length - offset) {
+                    shortWrites.incrementAndGet();
+                }
+                offset += n;
+                bytesSent.addAndGet(n);
+                failures = 0;
+                continue;
+            }
+
+            writeFailures.incrementAndGet();
+            if (++failures > maxWriteRetries || disconnected.get() || !backoff(failures)) {
+                return offset;
+            }
+        }
+        return offset;
+    }
+
+    private void readLoop() {
+        ByteBuffer buffer = ByteBuffer.allocate(transport.getMaxPacketSize());
+        int errors = 0;
+
+        while (running && !disconnected.get()) {
+            long waitNanos = receiveHandler.getWaitNanos(System.nanoTime());
+            int timeoutMillis = waitNanos < 0 ? POLL_MILLIS : (int) Math.max(1, Math.min(POLL_MILLIS, (waitNanos + 999999) / 1000000));
+
+            buffer.clear();
+            int n = transport.read(buffer, timeoutMillis);
+
+            if (n > 0) {
+                errors = 0;
+                bytesReceived.addAndGet(n);
+                buffer.flip();
+                try {
+                    receiveHandler.onReceive(buffer, System.nanoTime());
+                }
+                catch (RuntimeException e) {
+                    //one bad chunk mustn't silently take the reader down while the engine still claims to be running
+                    handlerErrors.incrementAndGet();
+                }
+            }
+            else if (n == 0) {
+                errors = 0;
+                try {
+                    receiveHandler.onIdle(System.nanoTime());
+                }
+                catch (RuntimeException e) {
+                    handlerErrors.incrementAndGet();
+                }
+            }
+            else {
+                readErrors.incrementAndGet();
+                if (++errors >= maxConsecutiveErrors) {
+                    disconnect();
+                }
+                else {
+                    backoff(errors);
+                }
+            }
+        }
+    }
+
+    private long drainMillisLeft() {
+        return (drainDeadline - System.nanoTime()) / 1000000L;
+    }
+
+    //exponential backoff so a failing transport doesn't get hammered. Returns false if interrupted
+    private boolean backoff(int failures) {
+        try {
+            Thread.sleep(Math.min(maxBackoffMillis, 1L << Math.min(failures - 1, 20)));
+            return true;
+        }
+        catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    private void disconnect() {
+        if (disconnected.compareAndSet(false, true)) {
+            running = false;
+            engineListener.onDisconnected();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package weiner.noah.usbscratch;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+//One thread doing the socket I/O for any number of SocketTransports (boards behind serial-to-TCP bridges), over a single
+//Selector. Everything that touches a channel or its selection key happens on this thread; other threads hand work over
+//through the task queue and wake the selector up
+public class SocketSelectorLoop {
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = false;
+    private volatile int connections = 0;
+    private Thread thread;
+
+    public SocketSelectorLoop() throws IOException {
+        selector = Selector.open();
+    }
+
+    public synchronized void start() {
+        if (running) {
+            throw new IllegalStateException("Selector loop already running");
+        }
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "SocketSelectorLoop");
+        thread.start();
+    }
+
+    //start a non-blocking connect to the bridge; the transport buffers writes until it's connected
+    public SocketTransport connect(InetSocketAddress address, int bufferSize) throws IOException {
+        final SocketChannel channel = SocketChannel.open();
+        final boolean connected;
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            connected = channel.connect(address);
+        }
+        catch (IOException | RuntimeException e) {
+            //don't leave the socket open behind the failure
+            try {
+                channel.close();
+            }
+            catch (IOException closeFailed) {
+                closeFailed.printStackTrace();
+            }
+            throw e;
+        }
+        final SocketTransport transport = new SocketTransport(this, channel, bufferSize);
+
+        boolean queued = execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SelectionKey key = channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, transport);
+                    transport.onRegistered(key, connected);
+                    connections++;
+                }
+                catch (ClosedChannelException e) {
+                    transport.onFailed();
+                }
+            }
+        });
+        if (!queued) {
+            //nothing will ever service it, hand it back already closed
+            transport.onFailed();
+        }
+        return transport;
+    }
+
+    //close every connection and stop the thread
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            t = thread;
+            thread = null;
+        }
+        selector.wakeup();
+
+        try {
+            t.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getConnectionCount() {
+        return connections;
+    }
+
+    //run the task on the selector thread. Returns false if the loop isn't running, in which case the task never runs and
+    //the caller has to do without the selector thread. Once this has returned true the task is guaranteed to run, if not
+    //in the loop then in its shutdown sweep
+    synchronized boolean execute(Runnable task) {
+        if (!running) {
+            return false;
+        }
+        tasks.add(task);
+        selector.wakeup();
+        return true;
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    void onClosed() {
+        connections--;
+    }
+
+    private void loop() {
+        while (running) {
+            try {
+                selector.select();
+            }
+            catch (IOException e) {
+                break;
+            }
+
+            runTasks();
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                SocketTransport transport = (SocketTransport) key.attachment();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isConnectable()) {
+                    transport.onConnectable();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    transport.onReadable();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    transport.onWritable();
+                }
+            }
+        }
+
+        //no more tasks after this, also when we got here because select() failed rather than through stop()
+        synchronized (this) {
+            running = false;
+        }
+
+        //finish what was handed over before that (registrations, closes), then shut down every connection still open
+        runTasks();
+        for (SelectionKey key : selector.keys()) {
+            ((SocketTransport) key.attachment()).closeNow();
+        }
+        try {
+            selector.close();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package weiner.noah.usbscratch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+//ISerialTransport over a TCP connection to a serial bridge, so the same SerialEngine (and UsbController send/receive API)
+//works for boards that aren't plugged in directly. The socket is non-blocking and only the SocketSelectorLoop thread
+//touches it: write() copies into a direct outbound buffer and read() takes from a direct inbound buffer, both guarded by
+//this object's lock, and the selector thread moves bytes between those buffers and the socket. When the inbound buffer
+//fills up we stop reading from the socket, which pushes back on the bridge through TCP flow control
+public class SocketTransport implements ISerialTransport {
+    //largest single read handed to the engine
+    private static final int MAX_PACKET = 4096;
+
+    private final SocketSelectorLoop loop;
+    private final SocketChannel channel;
+
+    //both kept in fill mode (position is the end of the data)
+    private final ByteBuffer inbound, outbound;
+
+    //only touched on the selector thread
+    private SelectionKey key;
+
+    private boolean connected = false, closed = false, readSuspended = false;
+
+    SocketTransport(SocketSelectorLoop selectorLoop, SocketChannel socketChannel, int bufferSize) {
+        loop = selectorLoop;
+        channel = socketChannel;
+        inbound = ByteBuffer.allocateDirect(bufferSize);
+        outbound = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    @Override
+    public synchronized int write(byte[] data, int offset, int length, int timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!closed && !outbound.hasRemaining()) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                return -1;
+            }
+            if (!waitFor(wait)) {
+                return -1;
+            }
+        }
+        if (closed) {
+            return -1;
+        }
+
+        //take what fits, the engine resends the rest
+        boolean wasEmpty = outbound.position() == 0;
+        int n = Math.min(length, outbound.remaining());
+        outbound.put(data, offset, n);
+
+        if (wasEmpty && connected) {
+            enableInterest(SelectionKey.OP_WRITE);
+        }
+        return n;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer buffer, int timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!closed && inbound.position() == 0) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                return 0;
+            }
+            if (!waitFor(wait)) {
+                return -1;
+            }
+        }
+        if (inbound.position() == 0) {
+            //closed with nothing left to hand out
+            return -1;
+        }
+
+        inbound.flip();
+        int n = Math.min(Math.min(inbound.remaining(), buffer.remaining()), MAX_PACKET);
+        int limit = inbound.limit();
+        inbound.limit(inbound.position() + n);
+        buffer.put(inbound);
+        inbound.limit(limit);
+        inbound.compact();
+
+        //room again, start pulling from the socket
+        if (readSuspended) {
+            readSuspended = false;
+            enableInterest(SelectionKey.OP_READ);
+        }
+        return n;
+    }
+
+    @Override
+    public int getMaxPacketSize() {
+        return MAX_PACKET;
+    }
+
+    @Override
+    public void close() {
+        boolean queued = loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeNow();
+            }
+        });
+        if (!queued) {
+            //the loop has stopped (its sweep already closed us if we were registered), so nothing else will close the
+            //socket, and the engine would keep reading 0 forever
+            closeNow();
+        }
+    }
+
+    public synchronized boolean isConnected() {
+        return connected && !closed;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    //block until connected, closed, or the timeout. Returns whether it's connected
+    public synchronized boolean awaitConnected(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!connected && !closed) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0 || !waitFor(wait)) {
+                break;
+            }
+        }
+        return connected && !closed;
+    }
+
+    //everything below runs on the selector thread
+
+    synchronized void onRegistered(SelectionKey selectionKey, boolean alreadyConnected) {
+        key = selectionKey;
+        if (alreadyConnected) {
+            onConnected();
+        }
+    }
+
+    void onConnectable() {
+        try {
+            if (channel.finishConnect()) {
+                synchronized (this) {
+                    onConnected();
+                }
+            }
+        }
+        catch (IOException e) {
+            closeNow();
+        }
+    }
+
+    void onReadable() {
+        synchronized (this) {
+            try {
+                int n = channel.read(inbound);
+                if (n < 0) {
+                    //bridge hung up
+                    closeNow();
+                    return;
+                }
+            }
+            catch (IOException e) {
+                closeNow();
+                return;
+            }
+
+            //full, stop reading until the engine takes some
+            if (!inbound.hasRemaining()) {
+                readSuspended = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            notifyAll();
+        }
+    }
+
+    void onWritable() {
+        synchronized (this) {
+            outbound.flip();
+            try {
+                channel.write(outbound);
+            }
+            catch (IOException e) {
+                outbound.compact();
+                closeNow();
+                return;
+            }
+            outbound.compact();
+
+            if (outbound.position() == 0) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+            notifyAll();
+        }
+    }
+
+    void onFailed() {
+        closeNow();
+    }
+
+    synchronized void closeNow() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (key != null) {
+            key.cancel();
+            loop.onClosed();
+        }
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        notifyAll();
+    }
+
+    //called with the lock held
+    private void onConnected() {
+        connected = true;
+        int ops = SelectionKey.OP_READ;
+        if (outbound.position() > 0) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+        notifyAll();
+    }
+
+    //turn on an interest op from whatever thread we're on, by handing it to the selector thread
+    private void enableInterest(final int op) {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SocketTransport.this) {
+                    if (key == null || !key.isValid()) {
+                        return;
+                    }
+                    //don't bring back reading if the buffer filled up again since this was asked for
+                    if (op == SelectionKey.OP_READ && readSuspended) {
+                        return;
+                    }
+                    key.interestOps(key.interestOps() | op);
+                }
+            }
+        });
+    }
+
+    private boolean waitFor(long millis) {
+        try {
+            wait(millis);
+            return true;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
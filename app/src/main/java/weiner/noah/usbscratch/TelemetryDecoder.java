@@ -0,0 +1,173 @@
+package weiner.noah.usbscratch;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+//Decodes a stream of fixed-size telemetry records (laid out per a SampleSchema) straight out of the receive buffers and
+//into one SampleRing per field. Records may be split across USB completions; the tail of a partial record is carried
+//over to the next call. If the schema frames its records (sync marker and/or checksum), every record gets checked
+//before it's decoded, and on a mismatch we slide forward to the next place a record could start instead of decoding
+//garbage from then on. Bare records can't be checked, so there one stray byte shifts everything until reset().
+//Only the reading thread should call decode()
+public class TelemetryDecoder {
+    private final SampleSchema schema;
+    private final SampleRing[] rings;
+    private final byte[] marker;
+
+    //holds a record that got split across completions
+    private final ByteBuffer carry;
+
+    private volatile long recordsDecoded = 0;
+
+    //records that failed their check, and bytes thrown away finding the next good one
+    private volatile long misalignedRecords = 0, bytesSkipped = 0;
+
+    public TelemetryDecoder(SampleSchema sampleSchema, int ringCapacity) {
+        schema = sampleSchema;
+        rings = new SampleRing[schema.getFieldCount()];
+        for (int i = 0; i < rings.length; i++) {
+            rings[i] = new SampleRing(schema.getFieldType(i), ringCapacity);
+        }
+        marker = schema.getMarker();
+        carry = ByteBuffer.allocate(schema.getRecordSize()).order(schema.getOrder());
+    }
+
+    //decode everything between position and limit of src, leaving src's position at its limit
+    public void decode(ByteBuffer src) {
+        ByteOrder callerOrder = src.order();
+        src.order(schema.getOrder());
+        int recordSize = schema.getRecordSize();
+
+        //finish off a record left over from last time
+        while (carry.position() > 0) {
+            while (carry.hasRemaining() && src.hasRemaining()) {
+                carry.put(src.get());
+            }
+            if (carry.hasRemaining()) {
+                src.order(callerOrder);
+                return;
+            }
+            if (isRecord(carry, 0)) {
+                decodeRecord(carry, 0);
+                carry.clear();
+                break;
+            }
+
+            //bad record, keep whatever part of it could still be the start of a good one
+            misalignedRecords++;
+            int next = nextCandidate(carry, 1, recordSize);
+            bytesSkipped += next;
+            byte[] held = carry.array();
+            System.arraycopy(held, next, held, 0, recordSize - next);
+            carry.clear();
+            carry.position(recordSize - next);
+        }
+
+        //whole records get decoded in place with absolute gets, no copying
+        int pos = src.position();
+        while (src.limit() - pos >= recordSize) {
+            if (isRecord(src, pos)) {
+                decodeRecord(src, pos);
+                pos += recordSize;
+            }
+            else {
+                misalignedRecords++;
+                int next = nextCandidate(src, pos + 1, src.limit());
+                bytesSkipped += next - pos;
+                pos = next;
+            }
+        }
+
+        //stash the tail, from where a record could start
+        int start = nextCandidate(src, pos, src.limit());
+        if (start > pos) {
+            misalignedRecords++;
+            bytesSkipped += start - pos;
+        }
+        src.position(start);
+        carry.put(src);
+        src.order(callerOrder);
+    }
+
+    public void decode(byte[] data, int offset, int length) {
+        decode(ByteBuffer.wrap(data, offset, length));
+    }
+
+    //drop any partial record, e.g. after the stream has been interrupted
+    public void reset() {
+        carry.clear();
+    }
+
+    public SampleSchema getSchema() {
+        return schema;
+    }
+
+    public SampleRing ring(int field) {
+        return rings[field];
+    }
+
+    public long getRecordsDecoded() {
+        return recordsDecoded;
+    }
+
+    //times a record failed the schema's marker or checksum check (or didn't start where one should), always 0 for bare
+    //records
+    public long getMisalignedRecords() {
+        return misalignedRecords;
+    }
+
+    public long getBytesSkipped() {
+        return bytesSkipped;
+    }
+
+    //whether the record starting at base has the right marker and checksum
+    private boolean isRecord(ByteBuffer src, int base) {
+        for (int i = 0; i < marker.length; i++) {
+            if (src.get(base + i) != marker[i]) {
+                return false;
+            }
+        }
+        if (schema.hasChecksum()) {
+            int end = base + schema.getRecordSize() - 1;
+            byte sum = 0;
+            for (int i = base + marker.length; i < end; i++) {
+                sum ^= src.get(i);
+            }
+            return sum == src.get(end);
+        }
+        return true;
+    }
+
+    //first position in [from, limit) where a record could start, i.e. whatever of the marker fits there matches
+    private int nextCandidate(ByteBuffer src, int from, int limit) {
+        for (int at = from; at < limit; at++) {
+            int n = Math.min(marker.length, limit - at);
+            int i = 0;
+            while (i < n && src.get(at + i) == marker[i]) {
+                i++;
+            }
+            if (i == n) {
+                return at;
+            }
+        }
+        return limit;
+    }
+
+    private void decodeRecord(ByteBuffer src, int base) {
+        for (int i = 0; i < rings.length; i++) {
+            int at = base + schema.getOffset(i);
+            switch (schema.getFieldType(i)) {
+                case INT16:
+                    rings[i].putShort(src.getShort(at));
+                    break;
+                case INT32:
+                    rings[i].putInt(src.getInt(at));
+                    break;
+                case FLOAT32:
+                    rings[i].putFloat(src.getFloat(at));
+                    break;
+            }
+        }
+        recordsDecoded++;
+    }
+}
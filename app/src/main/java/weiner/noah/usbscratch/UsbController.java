@@ -12,7 +12,6 @@ import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbManager;
-import android.hardware.usb.UsbRequest;
 import android.os.Build;
 import android.util.Log;
 import android.view.View;
@@ -39,7 +38,6 @@ public class UsbController {
     private final int VID;
     private final int PID;
     protected static final String ACTION_USB_PERMISSION = "weiner.noah.USB_PERMISSION";
-    private volatile int direction = 0, transferring = 0;
     public final Activity activity;
     public int error;
 
@@ -52,14 +50,27 @@ public class UsbController {
 
     public byte b;
 
-    //constant variable for the UsbRunnable (data transfer loop)
-    private UsbRunnable mLoop;
-    private ReadRunnable mReceiver;
+    //data transfer loops and the transport they run over
+    private volatile SerialEngine mEngine;
+    private volatile ISerialTransport mTransport;
 
-    private UsbRequest readingRequest;
+    //max bytes queued for sending before send() starts dropping
+    private static final int SEND_QUEUE_CAPACITY = 64;
 
-    //separate thread for usb data transfer
-    private Thread mUsbThread, mReceiveThread;
+    //receive aggregation: max bytes per dispatched chunk, and how long a partial chunk may wait before going out anyway
+    private static final int AGGREGATE_CAPACITY = 4096;
+    private static final long DEFAULT_LATENCY_TIMER_MICROS = 2000;
+    private volatile long mLatencyTimerMicros = DEFAULT_LATENCY_TIMER_MICROS;
+
+    //typed sample channel; when set, received data gets decoded into its sample rings instead of shown as text
+    private volatile TelemetryDecoder mTelemetry;
+
+    //value channels (raw or compact) sharing the link; once any are registered, received data is decoded through them
+    private final CompactMux mCompactMux = new CompactMux();
+
+    //host/device clock offset estimate, and the per-leg latencies it lets us split the round trip into
+    private final ClockSync mClockSync = new ClockSync(64);
+    public final LatencyStats latencyStats = new LatencyStats(256);
 
     //instantiate a new IPermissionReceiver interface, implementing the perm denied fxn
     IPermissionListener mPermissionListener = new IPermissionListener() {
@@ -84,6 +95,21 @@ public class UsbController {
         init();
     }
 
+    //controller for a board behind a serial-to-TCP bridge, skipping USB discovery entirely so that it works with no USB
+    //device attached. The transport comes from SocketSelectorLoop.connect()
+    public UsbController (Activity parentActivity, IUsbConnectionHandler connectionHandler, SocketTransport transport, Activity act) {
+        mApplicationContext = parentActivity.getApplicationContext();
+        mConnectionHandler = connectionHandler;
+        mUsbManager = (UsbManager) mApplicationContext.getSystemService(Context.USB_SERVICE);
+
+        //no USB device to match against
+        VID = -1;
+        PID = -1;
+        activity = act;
+        error=0;
+        startDataTransferThreads(transport);
+    }
+
     private class PermissionReceiver extends BroadcastReceiver {
         private final IPermissionListener permissionListener;
 
@@ -208,7 +234,7 @@ public class UsbController {
             }
             Log.d("STARTTHREADS", "Starting data transfer threads...");
             //start setting up the USB device in new thread
-            startDataTransferThreads(device);
+            startDataTransferThreads(new UsbTransport(connection, usb2serial, in, out));
         }
         else {
             Log.d("ERROR", "Error found");
@@ -269,200 +295,179 @@ public class UsbController {
 
     //This is the meat. We set up the USB communication interface similar to how we did in the PC to Arduino interface
 
-    //an empty array is less overhead space than an actual instantiation of a new Object()
-    private static final Object[] sSendLock = new Object[]{};
-    private static final Object[] killLock = new Object[]{};
-    private volatile boolean mStop = false, mKillReceiver = false;
-
-    //the byte for sending
-    private byte mData = 0x00;
+    private volatile boolean mStop = false;
 
     //public data received from Arduino for parsing
     public byte[] dataIn = new byte[1];
 
-    private class UsbRunnable implements Runnable {
-        private final UsbDevice device;
-        private final int sens;
-
-        //constructor
-        UsbRunnable(UsbDevice dev, int way) {device = dev; sens = way;}
+    //function to send a byte of data (hands it to the data transfer thread)
+    public void send (byte data) {
+        send(new byte[]{data});
+    }
 
-        @Override
-        //implement main USB functionality
-        public void run() {
-            if (sens == 1) {
-                //data transferring loop
-                while (true) {
-                    //synchronized means only one thread at a time can do this stuff. Basically no other thread can do stuff to the sSendLock object because this thread has the lock on it
-                    synchronized (sSendLock) { //create an output queue
-                        try {
-                            //have this thread wait until another thread invokes notify (sSendLock)
-                            sSendLock.wait();
-                        } catch (InterruptedException e) {
-                            //on interrupt exception, if stop is set, then call onStopped()
-                            if (mStop) {
-                                Log.e("ERROR", "InterruptedException in synchron");
-                                mConnectionHandler.onUsbStopped();
-                                return;
-                            }
-                            e.printStackTrace();
-                        }
-                    }
+    //function to send several bytes of data in one transfer
+    public void send (byte[] data) {
+        send(data, null);
+    }
 
-                    Log.d("THREAD", String.format("Value of direction is: %d", direction));
+    //queue bytes for the writing thread, with a callback for if they're dropped after being queued. Returns false if
+    //they weren't queued at all
+    private boolean send (byte[] data, SerialEngine.IMessageCallback callback) {
+        SerialEngine engine = mEngine;
+        if (mStop || engine == null) {
+            return false;
+        }
 
-                    if (mStop) {
-                        Log.e("ERROR", "Stopped after the sending thread was notify()ed, returning...");
-                        mConnectionHandler.onUsbStopped();
-                        transferring = 0;
-                        return;
-                    }
+        //queue the bytes for the writing thread
+        if (!engine.send(data, callback)) {
+            Log.e("SEND", "Send queue full or engine stopped, dropping data");
+            return false;
+        }
 
-                    if (direction == 1) {
-                        //transfer the byte of length 1, sending or receiving as specified
-                        connection.bulkTransfer(out, new byte[]{mData}, 1, 0);
-                    }
+        //display sending timestamp
+        sendTimeValue = System.currentTimeMillis();
 
-                    else { //never reached
-                        /*
-                        //transfer the byte of length 1, sending or receiving as specified
-                        Log.e("TRANSFER", "Beginning receive transfer...");
+        activity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                ((TextView)activity.findViewById(R.id.sent_time)).setText(String.format("Data sent timestamp: %d", sendTimeValue));
+            }
+        });
+        return true;
+    }
 
-                        int bytesTransferred = connection.bulkTransfer(in, dataIn, 22, 1000);
+    //send one value on a channel, compact-encoded if that's what was negotiated for it. Every value goes out on its
+    //own, so runs never form; for streams that can wait a little, sendValues() is far cheaper on a slow link
+    public boolean sendValue(CompactChannel channel, int value) {
+        return sendValues(channel, new int[]{value}, 0, 1);
+    }
 
-                        Log.e("TRANSFER", String.format("# of bytes received: %d", bytesTransferred));
-                        if (bytesTransferred<0) {
-                            mStop = true;
-                        }
-                        */
+    //send a batch of values on a channel in one transfer, so repeated values collapse into runs. Returns false if they
+    //weren't sent: the send queue was full, or the channel is waiting on a negotiation reply
+    public boolean sendValues(final CompactChannel channel, int[] values, int offset, int length) {
+        return mCompactMux.send(channel, values, offset, length, new CompactMux.IFrameSink() {
+            @Override
+            public boolean offer(byte[] frames) {
+                return send(frames, new SerialEngine.IMessageCallback() {
+                    @Override
+                    public void onWriting(byte[] data) {
                     }
 
-                    Log.d("THREAD", "Setting |transferring| back to 0");
-                    transferring = 0;
-                }
+                    @Override
+                    public void onDropped(byte[] data, int bytesWritten) {
+                        //the device never saw these, so it needs a fresh starting point
+                        channel.requestKeyframe();
+                    }
+                });
             }
-            else {
-                Log.d("QUEUE", "QUEUEING UP");
-                //queue up
-
-                ByteBuffer buffer = ByteBuffer.allocate(1);
+        });
+    }
 
-                UsbRequest request = new UsbRequest();
-                request.initialize(connection, in);
+    //ask the device to switch the given channel to the given mode. Sends on the channel are refused until the reply
+    //comes in, and received data gets decoded through it (and any other registered channels) from now on
+    public void negotiate(final CompactChannel channel, int requestedMode) {
+        mCompactMux.register(channel);
+        if (!send(channel.negotiationRequest(requestedMode), new SerialEngine.IMessageCallback() {
+            @Override
+            public void onWriting(byte[] data) {
+            }
 
-                //wait for data to become available for receiving from the Arduino
-                while (true) {
-                    if (request.queue(buffer, 1)) {
-                        Log.d("QUEUE", "WAITING FOR DATA...");
-                        connection.requestWait();
-                        // wait for this request to be completed
-                        // at this point buffer contains the data received
-                    }
-                    dataIn[0] = buffer.get(0);
-                }
+            @Override
+            public void onDropped(byte[] data, int bytesWritten) {
+                channel.cancelNegotiation();
             }
+        })) {
+            channel.cancelNegotiation();
         }
     }
 
-    //function to send a byte of data (wakes up data transfer thread)
-    public void send (byte data) {
-        if (mStop) {
-            return;
-        }
-
-        //set data out byte to the passed byte
-        mData = data;
-        direction = 1;
-
-        //display sending timestamp
-        sendTimeValue = System.currentTimeMillis();
+    //send a timestamp exchange request; the device's reply updates the clock offset estimate and the latency stats
+    public void syncClock() {
+        send(mClockSync.request(), new SerialEngine.IMessageCallback() {
+            @Override
+            public void onWriting(byte[] data) {
+                //stamped on the writing thread so time spent in the send queue doesn't count as uplink
+                mClockSync.stamp(data, System.nanoTime() / 1000);
+            }
 
-        activity.runOnUiThread(new Runnable() {
             @Override
-            public void run() {
-                ((TextView)activity.findViewById(R.id.sent_time)).setText(String.format("Data sent timestamp: %d", sendTimeValue));
+            public void onDropped(byte[] data, int bytesWritten) {
+                mClockSync.cancel(data);
             }
         });
+    }
 
-        synchronized (sSendLock) {
-            //wake up sSendLock for bulk transfer
-            sSendLock.notify();
-        }
+    //current estimate of device clock minus host clock, in microseconds
+    public double getClockOffset() {
+        return mClockSync.offsetAt(System.nanoTime() / 1000);
     }
 
-    //receive data
+    public double getClockDriftPpm() {
+        return mClockSync.getDriftPpm();
+    }
+
+    //receive data. The reading thread is always receiving, so this just reports the last byte it got
     public void receive () {
         if (mStop) {
             return;
         }
-        direction = 0;
-        synchronized (sSendLock) {
-            //wake up sReceiveLock for receiving
-            sSendLock.notify();
-        }
-        transferring = 1;
-        Log.d("TRANSFERRING VAL", String.format("%d", transferring));
-
-        //wait until all receiving finished
-        while (transferring==1) {
-            ;
-        }
 
         //Log debugging statements
         for (byte thisByte : dataIn) {
             Log.d("BYTEREAD", String.format("%x", thisByte));
         }
-        Log.d("TRANSFERRING VAL", String.format("%d", transferring));
     }
 
-    //stop usb data transfer
-    public void stop() {
-        synchronized (killLock) {
-            mKillReceiver = true;
+    //set the receive latency timer, in microseconds. Takes effect the next time the reading thread is started
+    public void setLatencyTimer(long micros) {
+        if (micros <= 0) {
+            throw new IllegalArgumentException("Latency timer must be positive");
+        }
+        mLatencyTimerMicros = micros;
+    }
 
-            //ping a kill signal off of the STM32 over to the requestWait() blocking function
-            send((byte) 0xFF);
+    //route received data into the given telemetry decoder instead of the text view, pass null to go back to text
+    public void setTelemetryChannel(TelemetryDecoder decoder) {
+        //start on a record boundary, whatever was carried over from before
+        if (decoder != null) {
+            decoder.reset();
+        }
+        mTelemetry = decoder;
+    }
 
+    public TelemetryDecoder getTelemetryChannel() {
+        return mTelemetry;
+    }
 
-            try {
-                //wait to make sure sending of kill signal is done and receiver has shut down
-                killLock.wait();
-            }
-            catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
+    //route received data for this channel to it instead of the text view. Any number of channels can be registered
+    public void registerCompactChannel(CompactChannel channel) {
+        mCompactMux.register(channel);
+    }
 
-        synchronized (sSendLock) {
-            //wake up sending thread to make it return
-            mStop = true;
-            sSendLock.notify();
-        }
+    //once the last channel is gone, received data goes back to the text view
+    public void unregisterCompactChannel(CompactChannel channel) {
+        mCompactMux.unregister(channel);
+    }
 
-        //readingRequest.close();
-        //connection.close();
+    //switch an existing controller over to a board behind a serial-to-TCP bridge, through the same send/receive API, e.g.
+    //after its USB connection went away. To start out on a socket with no USB device around, use the socket constructor
+    public void openSocketConnection(SocketTransport transport) {
+        error = 0;
+        startDataTransferThreads(transport);
+    }
 
-        //terminate the data transfer thread by joining it to main UI thread, also terminate receiving thread
-        try { //cleaning up threads
-            if (mUsbThread!=null) {
-                Log.d("DBUG", "Joining UsbThread...");
-                mUsbThread.join();
-            }
-            if (mReceiveThread!=null) {
-                Log.d("DBUG", "Joining ReceiveThread...");
-                mReceiveThread.join();
-            }
-        }
-        catch (InterruptedException e) {
-            e.printStackTrace();
+    //stop usb data transfer
+    public void stop() {
+        if (mEngine != null) {
+            //ping the kill signal off of the STM32 as before; every read times out now, so the reader no longer depends on it
+            send((byte) 0xFF);
+            mStop = true;
+            Log.d("DBUG", "Stopping data transfer threads...");
         }
+        teardown();
 
-        //reset stop flag, current usbrunnable and readrunnable instance, and both data transfer threads
+        //reset stop flag
         mStop = false;
-        mLoop = null;
-        mReceiver = null;
-        mUsbThread = null;
-        mReceiveThread = null;
 
         //try to unregister the permission receiver
         try {
@@ -485,89 +490,185 @@ public class UsbController {
         });
     }
 
-    //start up a new thread for USB comms with the given device
-    private void startDataTransferThreads(UsbDevice device) {
-        if (mLoop !=null) {
+    //stop the engine and close the transport, if there still are any. Called by stop(), and by the engine itself when
+    //the transport goes away, so that a new connection can be started on this controller afterwards
+    private void teardown() {
+        SerialEngine engine;
+        ISerialTransport transport;
+
+        //take them out first, so that whoever gets here second has nothing to do (and nobody waits on the threads while
+        //holding the lock that a disconnecting thread needs)
+        synchronized (this) {
+            engine = mEngine;
+            transport = mTransport;
+            mEngine = null;
+            mTransport = null;
+        }
+        if (engine == null) {
+            return;
+        }
+
+        //lets the writing thread drain (so the kill signal goes out) for up to the engine's stop timeout, then waits for
+        //both threads to exit
+        engine.stop();
+        transport.close();
+    }
+
+    //start up the data transfer threads over the given transport
+    private synchronized void startDataTransferThreads(ISerialTransport transport) {
+        if (mEngine != null) {
             //USB data transfer thread already running
             mConnectionHandler.onErrorLooperRunningAlready();
             return;
         }
-        //make new UsbRunnable and thread for comms with the device
-        mLoop = new UsbRunnable(device, 1);
-        mReceiver = new ReadRunnable();
+        mTransport = transport;
+        final ReceiveHandler handler = new ReceiveHandler();
+
+        //a new stream starts on a frame boundary
+        mCompactMux.reset();
+
+        //a new stream starts on a record boundary, so drop any partial record left from the last connection
+        TelemetryDecoder telemetry = mTelemetry;
+        if (telemetry != null) {
+            telemetry.reset();
+        }
+
+        mEngine = new SerialEngine(transport, handler, new SerialEngine.IEngineListener() {
+            @Override
+            public void onStopped() {
+                //threads are gone, so nothing else is touching the aggregate now
+                handler.aggregator.flush();
+                mConnectionHandler.onUsbStopped();
+            }
+
+            @Override
+            public void onDisconnected() {
+                Log.e("USBERROR", "Transport kept failing, data transfer threads shut down");
 
-        //assign the new runnable to new thread
-        mUsbThread = new Thread(mLoop);
-        mReceiveThread = new Thread(mReceiver);
+                //reap the threads and let go of the transport, so reconnecting doesn't find the old engine still set
+                teardown();
+                mConnectionHandler.onUsbDisconnected();
+            }
+        }, SEND_QUEUE_CAPACITY);
 
         //start new threads in background
-        mUsbThread.start();
-        mReceiveThread.start();
+        mEngine.start();
     }
 
+    //handles every completed read on the reading thread
+    private class ReceiveHandler implements SerialEngine.IReceiveHandler {
+        //completions get collected here and only handed up to the UI as aggregated chunks
+        final ReadAggregator aggregator = new ReadAggregator(new ReadAggregator.IChunkListener() {
+            @Override
+            public void onChunk(byte[] data, int length) {
+                //binary telemetry gets decoded right here on the reading thread, no strings or boxing
+                TelemetryDecoder telemetry = mTelemetry;
+                if (telemetry != null) {
+                    telemetry.decode(data, 0, length);
+                    return;
+                }
 
+                //channel frames and negotiation replies, which may be split across chunks
+                if (!mCompactMux.isEmpty()) {
+                    mCompactMux.decode(data, 0, length);
+                    return;
+                }
 
-    private class ReadRunnable implements Runnable {
-        private byte[] incomingData = new byte[1];
-        @Override
-        public void run() {
-            //queue up
-            final ByteBuffer buffer = ByteBuffer.allocate(22);
-
-            readingRequest = new UsbRequest();
-
-            //intialize an asynchronous request for USB data from the connected device
-            readingRequest.initialize(connection, in);
-
-            //wait for data to become available to receive
-            while (true) {
-                if (readingRequest.queue(buffer, 22)) {
-                    Log.d("QUEUE", "WAITING FOR DATA...");
-                    connection.requestWait();
-
-                    //stamp time of data reception
-                    receiveTimeValue = System.currentTimeMillis();
-                    latency = receiveTimeValue - sendTimeValue;
-
-                    activity.runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            ((TextView)activity.findViewById(R.id.received_time)).setText(String.format("Echo received timestamp: %d", receiveTimeValue));
-                            ((TextView)activity.findViewById(R.id.latency)).setText(String.format("Approximate latency: %d ms", latency));
-                        }
-                    });
-
-                    //wait for this request to be completed
-                    //at this point buffer contains the data received
-                    final byte firstChar = buffer.get(0);
-                    Log.d("BUFFER", String.format("Got: Hex value %x", firstChar));
-
-                    if (firstChar!=-1 && firstChar != 0x00) {
-                        Log.d("BUFFDATA", String.format("Valid character %c", firstChar));
-                        activity.runOnUiThread(new Runnable() {
-                            @Override
-                            public void run() {
-                                //((TextView)activity.findViewById(R.id.test)).append(String.format("%c ", firstChar));
-                                ((TextView)activity.findViewById(R.id.test)).append(new String(buffer.array()));
-                            }
-                        });
+                //copy out now, the aggregator reuses its array
+                final String chunk = new String(data, 0, length);
+                Log.d("AGGREGATE", String.format("Dispatching chunk of %d bytes", length));
+
+                activity.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        ((TextView)activity.findViewById(R.id.test)).append(chunk);
                     }
+                });
+            }
+        }, AGGREGATE_CAPACITY, 1, mLatencyTimerMicros);
 
-                    //if signal to kill has been sent by stop function, then end the thread so that we can reset
-                    if (mKillReceiver) {
-                        Log.d("DBUG", "Receiver flagged to stop, returning...");
-                        mConnectionHandler.onUsbStopped();
+        @Override
+        public long getWaitNanos(long nowNanos) {
+            //if there's data sitting in the aggregate (or held back as a possible sync reply), only block until it's due
+            long aggregate = aggregator.nanosUntilDeadline(nowNanos);
+            long held = mClockSync.microsUntilRelease(nowNanos / 1000);
+            if (held < 0) {
+                return aggregate;
+            }
+            return aggregate < 0 ? held * 1000 : Math.min(aggregate, held * 1000);
+        }
 
-                        synchronized ((killLock)) {
-                            killLock.notify();
-                        }
+        @Override
+        public void onIdle(long nowNanos) {
+            //bytes held back as a possible start of a sync reply go through if nothing followed them in time
+            ByteBuffer released = mClockSync.poll(nowNanos / 1000);
+            if (released.hasRemaining()) {
+                offerData(released, nowNanos);
+                return;
+            }
 
-                        return;
-                    }
+            //timer ran out with nothing new, dispatch what we have
+            aggregator.poll(nowNanos);
+        }
+
+        @Override
+        public void onReceive(ByteBuffer buffer, long receiveNanos) {
+            //stamp time of data reception
+            final long receiveMicros = receiveNanos / 1000;
+            receiveTimeValue = System.currentTimeMillis();
+            latency = receiveTimeValue - sendTimeValue;
+
+            activity.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    ((TextView)activity.findViewById(R.id.received_time)).setText(String.format("Echo received timestamp: %d", receiveTimeValue));
+                    ((TextView)activity.findViewById(R.id.latency)).setText(String.format("Approximate latency: %d ms", latency));
                 }
+            });
+
+            //pull out the reply to an outstanding timestamp exchange first, right here so the aggregator's latency timer
+            //doesn't skew t4. Whatever is left over is ordinary data
+            long exchangesBefore = mClockSync.getExchanges();
+            buffer = mClockSync.extract(buffer, receiveMicros, latencyStats);
+            if (mClockSync.getExchanges() != exchangesBefore) {
+                final String summary = latencyStats.summary();
+                Log.d("CLOCKSYNC", String.format("Offset %.0f us, drift %.2f ppm", getClockOffset(), getClockDriftPpm()));
+
+                activity.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        ((TextView)activity.findViewById(R.id.latency)).setText(summary);
+                    }
+                });
             }
+
+            offerData(buffer, receiveNanos);
         }
-    }
-}
 
+        //hand received data (sync replies already taken out) to the aggregator
+        private void offerData(ByteBuffer buffer, long receiveNanos) {
+            if (!buffer.hasRemaining()) {
+                //nothing to add, but the timer may still have run out on what's pending
+                aggregator.poll(receiveNanos);
+                return;
+            }
 
+            final byte firstChar = buffer.get(buffer.position());
+            Log.d("BUFFER", String.format("Got: Hex value %x", firstChar));
+            dataIn[0] = firstChar;
+
+            if (mTelemetry != null || !mCompactMux.isEmpty()) {
+                //binary records can legitimately start with 0x00 or 0xFF, so don't filter them
+                aggregator.offer(buffer, receiveNanos);
+            }
+            else if (firstChar!=-1 && firstChar != 0x00) {
+                Log.d("BUFFDATA", String.format("Valid character %c", firstChar));
+                aggregator.offer(buffer, receiveNanos);
+            }
+            else {
+                //nothing to add, but the timer may still have run out on what's pending
+                aggregator.poll(receiveNanos);
+            }
+        }
+    }
+}
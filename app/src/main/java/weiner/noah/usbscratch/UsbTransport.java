@@ -0,0 +1,126 @@
+package weiner.noah.usbscratch;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+import android.hardware.usb.UsbRequest;
+import android.os.Build;
+import android.os.SystemClock;
+
+import androidx.annotation.RequiresApi;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeoutException;
+
+//ISerialTransport over the bulk endpoints of a claimed USB interface. Writes are plain bulk transfers. On O and up reads
+//go through an asynchronous UsbRequest waited on with a timeout, and a request that timed out stays queued for the next
+//read. Before O requestWait() can't time out (so a latency timer would never fire) and doesn't report the transfer
+//length (so stale bytes from earlier transfers would get passed up), so there reads are bulk transfers with a timeout.
+//The transport owns the connection: closing it releases the interface and closes the connection too
+public class UsbTransport implements ISerialTransport {
+    private final UsbDeviceConnection connection;
+    private final UsbInterface usbInterface;
+    private final UsbEndpoint in, out;
+    private final ByteBuffer readBuffer;
+
+    //only used on O and up
+    private final UsbRequest readingRequest;
+
+    //whether readingRequest is still out there waiting on the device
+    private boolean queued = false;
+
+    public UsbTransport(UsbDeviceConnection deviceConnection, UsbInterface claimedInterface, UsbEndpoint inEndpoint, UsbEndpoint outEndpoint) {
+        connection = deviceConnection;
+        usbInterface = claimedInterface;
+        in = inEndpoint;
+        out = outEndpoint;
+
+        //size the receive buffer off of the endpoint instead of a hardcoded guess, so bigger packets don't get clipped
+        readBuffer = ByteBuffer.allocate(in.getMaxPacketSize());
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            //intialize an asynchronous request for USB data from the connected device
+            readingRequest = new UsbRequest();
+            readingRequest.initialize(connection, in);
+        }
+        else {
+            readingRequest = null;
+        }
+    }
+
+    @Override
+    public int write(byte[] data, int offset, int length, int timeoutMillis) {
+        return connection.bulkTransfer(out, data, offset, length, timeoutMillis);
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, int timeoutMillis) {
+        int n = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O ? readQueued(timeoutMillis) : readBulk(timeoutMillis);
+        if (n <= 0) {
+            return n;
+        }
+
+        //hand over exactly what the device sent
+        readBuffer.flip();
+        n = Math.min(n, buffer.remaining());
+        readBuffer.limit(readBuffer.position() + n);
+        buffer.put(readBuffer);
+        return n;
+    }
+
+    @Override
+    public int getMaxPacketSize() {
+        return readBuffer.capacity();
+    }
+
+    @Override
+    public void close() {
+        if (readingRequest != null) {
+            //a request still queued on the device has to be pulled back before it can be freed
+            readingRequest.cancel();
+            queued = false;
+            readingRequest.close();
+        }
+
+        connection.releaseInterface(usbInterface);
+        connection.close();
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.O)
+    private int readQueued(int timeoutMillis) {
+        if (!queued) {
+            readBuffer.clear();
+            if (!readingRequest.queue(readBuffer)) {
+                return -1;
+            }
+            queued = true;
+        }
+
+        UsbRequest done;
+        try {
+            //0 would mean wait forever
+            done = connection.requestWait(Math.max(1, timeoutMillis));
+        }
+        catch (TimeoutException e) {
+            //request stays queued, pick it back up next time
+            return 0;
+        }
+        queued = false;
+
+        //on O and up the position is advanced past the bytes actually transferred
+        return done == null ? -1 : readBuffer.position();
+    }
+
+    private int readBulk(int timeoutMillis) {
+        readBuffer.clear();
+        long start = SystemClock.elapsedRealtime();
+        int n = connection.bulkTransfer(in, readBuffer.array(), readBuffer.capacity(), Math.max(1, timeoutMillis));
+
+        if (n < 0) {
+            //bulkTransfer() says -1 for a timeout too, tell the two apart by how long it took
+            return SystemClock.elapsedRealtime() - start >= timeoutMillis ? 0 : -1;
+        }
+        readBuffer.position(n);
+        return n;
+    }
+}
@@ -0,0 +1,311 @@
+package weiner.noah.usbscratch;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the host/device clock offset estimate, run against a simulated device whose clock is both offset
+ * and running fast.
+ */
+public class ClockSyncTest {
+    //device clock: starts way off and runs 80 ppm fast
+    private static final long DEVICE_EPOCH = 5000000123L;
+    private static final double SKEW_PPM = 80;
+
+    private final Random random = new Random(1234);
+    private final LatencyStats stats = new LatencyStats(1024);
+    private long trueUplinkSum = 0, trueDownlinkSum = 0, trueProcessingSum = 0;
+
+    private static long deviceTime(long hostTime) {
+        return DEVICE_EPOCH + Math.round(hostTime * (1 + SKEW_PPM / 1e6));
+    }
+
+    private static double trueOffset(long hostTime) {
+        return deviceTime(hostTime) - hostTime;
+    }
+
+    //queueing jitter on top of a fixed base delay
+    private long leg(long base) {
+        return base + Math.round(-200 * Math.log(1 - random.nextDouble()));
+    }
+
+    //one exchange through the simulated device with symmetric 350us legs
+    private void exchange(ClockSync sync, long t1) {
+        exchange(sync, t1, 350, 350);
+    }
+
+    //one exchange through the simulated device, going through the wire format both ways
+    private void exchange(ClockSync sync, long t1, long uplinkBase, long downlinkBase) {
+        ByteBuffer request = ByteBuffer.wrap(send(sync, t1)).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(ClockSync.SYNC, request.get());
+        long echoed = request.getLong();
+
+        long uplink = leg(uplinkBase), processing = 100 + random.nextInt(50), downlink = leg(downlinkBase);
+        trueUplinkSum += uplink;
+        trueDownlinkSum += downlink;
+        trueProcessingSum += processing;
+
+        long t2 = deviceTime(t1 + uplink);
+        long t3 = deviceTime(t1 + uplink + processing);
+        long t4 = t1 + uplink + processing + downlink;
+
+        long before = sync.getExchanges();
+        ByteBuffer rest = sync.extract(reply(echoed, t2, t3), t4, stats);
+        assertFalse(rest.hasRemaining());
+        assertEquals(before + 1, sync.getExchanges());
+        assertFalse(sync.isOutstanding());
+    }
+
+    //a request as the writing thread would send it at t1
+    private static byte[] send(ClockSync sync, long t1) {
+        byte[] request = sync.request();
+        sync.stamp(request, t1);
+        return request;
+    }
+
+    private static ByteBuffer reply(long t1, long t2, long t3) {
+        ByteBuffer reply = ByteBuffer.allocate(ClockSync.REPLY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        reply.put(ClockSync.SYNC).putLong(t1).putLong(t2).putLong(t3).flip();
+        return reply;
+    }
+
+    private static byte[] remaining(ByteBuffer buffer) {
+        byte[] out = new byte[buffer.remaining()];
+        buffer.get(out);
+        return out;
+    }
+
+    @Test
+    public void skewedDevice_offsetAndDriftAreRecovered() {
+        ClockSync sync = new ClockSync(64);
+        long t = 0;
+        for (int i = 0; i < 500; i++) {
+            t += 50000;
+            exchange(sync, t);
+        }
+
+        assertEquals(500, sync.getExchanges());
+        assertEquals("offset", trueOffset(t), sync.offsetAt(t), 30);
+        assertEquals("drift", SKEW_PPM, sync.getDriftPpm(), 10);
+
+        //converting back from device time lands close to the true host time
+        assertEquals(t, sync.toHostTime(deviceTime(t)), 30);
+    }
+
+    @Test
+    public void skewedDevice_legsAreReportedSeparately() {
+        ClockSync sync = new ClockSync(64);
+        long t = 0;
+
+        //warm up the estimator, then measure
+        for (int i = 0; i < 100; i++) {
+            t += 50000;
+            exchange(sync, t);
+        }
+        stats.reset();
+        trueUplinkSum = 0;
+        trueDownlinkSum = 0;
+        trueProcessingSum = 0;
+
+        for (int i = 0; i < 400; i++) {
+            t += 50000;
+            exchange(sync, t);
+        }
+        assertEquals("processing", trueProcessingSum / 400.0, stats.get(LatencyStats.PROCESSING).getMean(), 1);
+        assertTrue(stats.summary().contains("processing"));
+
+        LatencyStats.Series uplink = stats.get(LatencyStats.UPLINK);
+        LatencyStats.Series downlink = stats.get(LatencyStats.DOWNLINK);
+        assertEquals(400, uplink.getCount());
+        assertEquals("uplink", trueUplinkSum / 400.0, uplink.getMean(), 40);
+        assertEquals("downlink", trueDownlinkSum / 400.0, downlink.getMean(), 40);
+        assertTrue(stats.get(LatencyStats.ROUND_TRIP).getMean() > uplink.getMean() + downlink.getMean());
+    }
+
+    @Test
+    public void asymmetricPath_offsetIsBiasedByHalfTheDifference() {
+        //uplink ~850us, downlink ~250us. Four timestamps can't see this, so the legs come out as equal halves and the
+        //offset is off by (850 - 250) / 2 = 300us
+        ClockSync sync = new ClockSync(64);
+        long t = 0;
+        for (int i = 0; i < 100; i++) {
+            t += 50000;
+            exchange(sync, t, 850, 250);
+        }
+        stats.reset();
+        for (int i = 0; i < 400; i++) {
+            t += 50000;
+            exchange(sync, t, 850, 250);
+        }
+
+        assertEquals("offset bias", 300, sync.offsetAt(t) - trueOffset(t), 30);
+        double uplink = stats.get(LatencyStats.UPLINK).getMean();
+        double downlink = stats.get(LatencyStats.DOWNLINK).getMean();
+        assertEquals("legs look symmetric", uplink, downlink, 40);
+    }
+
+    @Test
+    public void asymmetricPath_knownAsymmetryIsCorrected() {
+        ClockSync sync = new ClockSync(64);
+        sync.setPathAsymmetry(850 - 250);
+        long t = 0;
+        for (int i = 0; i < 100; i++) {
+            t += 50000;
+            exchange(sync, t, 850, 250);
+        }
+        stats.reset();
+        trueUplinkSum = 0;
+        trueDownlinkSum = 0;
+        for (int i = 0; i < 400; i++) {
+            t += 50000;
+            exchange(sync, t, 850, 250);
+        }
+
+        assertEquals("offset", trueOffset(t), sync.offsetAt(t), 30);
+        assertEquals("uplink", trueUplinkSum / 400.0, stats.get(LatencyStats.UPLINK).getMean(), 40);
+        assertEquals("downlink", trueDownlinkSum / 400.0, stats.get(LatencyStats.DOWNLINK).getMean(), 40);
+    }
+
+    @Test
+    public void nonReply_isLeftAlone() {
+        ClockSync sync = new ClockSync(8);
+        ByteBuffer data = ByteBuffer.wrap("hello, this is not a sync reply".getBytes());
+
+        assertSame(data, sync.extract(data, 0, stats));
+        assertEquals(0, data.position());
+        assertEquals(0, sync.getExchanges());
+    }
+
+    @Test
+    public void replyShapedData_withoutRequest_isLeftAlone() {
+        //a telemetry record that happens to start with 0xFD (int16 -3) and is long enough to pass for a reply
+        ClockSync sync = new ClockSync(8);
+        ByteBuffer data = reply(77, 1, 2);
+
+        assertSame(data, sync.extract(data, 100, stats));
+        assertEquals(0, sync.getExchanges());
+    }
+
+    @Test
+    public void replyWithWrongT1_isPassedThrough() {
+        ClockSync sync = new ClockSync(8);
+        send(sync, 1000);
+        ByteBuffer data = reply(999, 1, 2);
+        byte[] expected = data.array().clone();
+
+        assertArrayEquals(expected, remaining(sync.extract(data, 2000, stats)));
+        assertEquals(0, sync.getExchanges());
+        assertTrue(sync.isOutstanding());
+    }
+
+    @Test
+    public void splitReply_isReassembled() {
+        ClockSync sync = new ClockSync(8);
+        send(sync, 1000);
+        byte[] whole = reply(1000, 5001400, 5001500).array();
+
+        //reply split three ways, with data on either side
+        ByteBuffer first = ByteBuffer.allocate(12);
+        first.put(new byte[]{1, 2, (byte) 0xFD}).put(whole, 0, 9).flip();
+        ByteBuffer second = ByteBuffer.wrap(whole, 9, 10);
+        ByteBuffer third = ByteBuffer.allocate(8);
+        third.put(whole, 19, 6).put(new byte[]{3, 4}).flip();
+
+        assertArrayEquals(new byte[]{1, 2, (byte) 0xFD}, remaining(sync.extract(first, 1900, stats)));
+        assertEquals(0, sync.extract(second, 1950, stats).remaining());
+        assertEquals(0, sync.getExchanges());
+        assertArrayEquals(new byte[]{3, 4}, remaining(sync.extract(third, 2000, stats)));
+
+        assertEquals(1, sync.getExchanges());
+        assertFalse(sync.isOutstanding());
+        assertEquals(1000, stats.get(LatencyStats.ROUND_TRIP).getMean(), 1e-9);
+
+        //once answered, further reply-shaped data goes straight through
+        ByteBuffer again = reply(1000, 5001400, 5001500);
+        assertSame(again, sync.extract(again, 3000, stats));
+        assertEquals(1, sync.getExchanges());
+    }
+
+    @Test
+    public void partialMatch_isReleasedWhenItFails() {
+        ClockSync sync = new ClockSync(8);
+        send(sync, 0x0102030405060708L);
+
+        //starts like the reply, then goes wrong in the next completion
+        ByteBuffer first = ByteBuffer.wrap(new byte[]{9, (byte) 0xFD, 0x08, 0x07});
+        ByteBuffer second = ByteBuffer.wrap(new byte[]{0x00, 10});
+
+        assertArrayEquals(new byte[]{9}, remaining(sync.extract(first, 0, stats)));
+        assertArrayEquals(new byte[]{(byte) 0xFD, 0x08, 0x07, 0x00, 10}, remaining(sync.extract(second, 0, stats)));
+        assertEquals(0, sync.getExchanges());
+    }
+
+    @Test
+    public void request_isOnlyOutstandingOnceStamped() {
+        ClockSync sync = new ClockSync(8);
+        byte[] request = sync.request();
+        assertEquals(ClockSync.SYNC, request[0]);
+        assertFalse(sync.isOutstanding());
+
+        //stamped by the writing thread with the time it actually goes out
+        sync.stamp(request, 123456);
+        assertTrue(sync.isOutstanding());
+        assertEquals(123456, ByteBuffer.wrap(request).order(ByteOrder.LITTLE_ENDIAN).getLong(1));
+
+        //a drop reported for an older request leaves the newer one alone
+        byte[] newer = send(sync, 200000);
+        sync.cancel(request);
+        assertTrue(sync.isOutstanding());
+        sync.cancel(newer);
+        assertFalse(sync.isOutstanding());
+    }
+
+    @Test
+    public void unansweredRequest_expires() {
+        ClockSync sync = new ClockSync(8);
+        send(sync, 1000);
+
+        //no reply within the timeout, so even a matching one is just data by now
+        ByteBuffer late = reply(1000, 1, 2);
+        assertSame(late, sync.extract(late, 1000 + ClockSync.DEFAULT_REPLY_TIMEOUT_MICROS + 1, stats));
+        assertFalse(sync.isOutstanding());
+        assertEquals(1, sync.getExpired());
+        assertEquals(0, sync.getExchanges());
+    }
+
+    @Test
+    public void heldTail_isReleasedWhenIdle() {
+        ClockSync sync = new ClockSync(8);
+        send(sync, 1000);
+
+        //a telemetry record that happens to end in 0xFD
+        ByteBuffer data = ByteBuffer.wrap(new byte[]{1, 2, (byte) 0xFD});
+        assertArrayEquals(new byte[]{1, 2}, remaining(sync.extract(data, 2000, stats)));
+        assertEquals(ClockSync.DEFAULT_HOLD_TIMEOUT_MICROS, sync.microsUntilRelease(2000));
+
+        //too soon, it could still be the reply
+        assertEquals(0, sync.poll(2000 + ClockSync.DEFAULT_HOLD_TIMEOUT_MICROS - 1).remaining());
+
+        //nothing followed, so it goes through after all, while the request keeps waiting
+        assertArrayEquals(new byte[]{(byte) 0xFD}, remaining(sync.poll(2000 + ClockSync.DEFAULT_HOLD_TIMEOUT_MICROS)));
+        assertEquals(-1, sync.microsUntilRelease(30000));
+        assertTrue(sync.isOutstanding());
+    }
+
+    @Test
+    public void percentiles_comeFromRecentWindow() {
+        LatencyStats.Series series = new LatencyStats(100).get(LatencyStats.UPLINK);
+        for (int i = 1; i <= 100; i++) {
+            series.record(i);
+        }
+        assertEquals(50, series.percentile(50));
+        assertEquals(99, series.percentile(99));
+        assertEquals(100, series.percentile(100));
+        assertEquals(50.5, series.getMean(), 1e-9);
+    }
+}
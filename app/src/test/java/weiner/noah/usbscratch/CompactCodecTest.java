@@ -0,0 +1,412 @@
+package weiner.noah.usbscratch;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the compact delta/RLE encoding, including its payoff on a simulated 9600 baud link.
+ */
+public class CompactCodecTest {
+    //8N1 framing: 10 bits on the wire per byte
+    private static final double LINK_BYTES_PER_SEC = 9600 / 10.0;
+
+    private final List<Integer> decoded = new ArrayList<>();
+
+    private final CompactCodec.IValueListener collector = new CompactCodec.IValueListener() {
+        @Override
+        public void onValue(int value) {
+            decoded.add(value);
+        }
+    };
+
+    //SeekBar-style control stream: long holds broken up by short drags
+    private static int[] seekBarStream(int count, Random random) {
+        int[] values = new int[count];
+        int position = 128;
+        for (int i = 0; i < count; i++) {
+            if (random.nextInt(10) == 0) {
+                position = Math.max(0, Math.min(255, position + random.nextInt(7) - 3));
+            }
+            values[i] = position;
+        }
+        return values;
+    }
+
+    //slowly drifting int16 sensor reading with a little noise
+    private static int[] sensorStream(int count, Random random) {
+        int[] values = new int[count];
+        double level = 1000;
+        for (int i = 0; i < count; i++) {
+            level += Math.sin(i / 200.0) * 2;
+            values[i] = (int) level + random.nextInt(3) - 1;
+        }
+        return values;
+    }
+
+    private byte[] encodeAll(CompactChannel channel, int[] values) {
+        ByteBuffer out = ByteBuffer.allocate(channel.maxEncodedSize(values.length));
+        channel.encode(values, 0, values.length, out);
+        byte[] bytes = new byte[out.position()];
+        out.flip();
+        out.get(bytes);
+        return bytes;
+    }
+
+    private void assertDecodedEquals(int[] expected) {
+        assertEquals(expected.length, decoded.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], (long) decoded.get(i));
+        }
+    }
+
+    @Test
+    public void zigzag_roundTrips() {
+        int[] values = {0, -1, 1, -2, 2, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        for (int v : values) {
+            assertEquals(v, CompactCodec.unzigzag(CompactCodec.zigzag(v)));
+        }
+        assertEquals(1, CompactCodec.zigzag(-1));
+        assertEquals(2, CompactCodec.zigzag(1));
+    }
+
+    @Test
+    public void extremeDeltas_roundTrip() {
+        CompactChannel channel = new CompactChannel(1, 4, collector);
+        channel.setMode(CompactChannel.MODE_COMPACT);
+        int[] values = {Integer.MAX_VALUE, Integer.MIN_VALUE, 0, -5, -5, -5, Integer.MIN_VALUE, Integer.MIN_VALUE};
+
+        byte[] bytes = encodeAll(channel, values);
+        channel.decode(bytes, 0, bytes.length);
+
+        assertDecodedEquals(values);
+    }
+
+    @Test
+    public void compactStream_splitAcrossChunks_roundTrips() {
+        CompactChannel sender = new CompactChannel(2, 2, null);
+        CompactChannel receiver = new CompactChannel(2, 2, collector);
+        sender.setMode(CompactChannel.MODE_COMPACT);
+        receiver.setMode(CompactChannel.MODE_COMPACT);
+
+        int[] values = sensorStream(2000, new Random(7));
+        byte[] bytes = encodeAll(sender, values);
+
+        for (int off = 0; off < bytes.length; off += 3) {
+            receiver.decode(bytes, off, Math.min(3, bytes.length - off));
+        }
+
+        assertDecodedEquals(values);
+    }
+
+    @Test
+    public void holdsAndRamps_collapseIntoRuns() {
+        CompactChannel channel = new CompactChannel(3, 2, collector);
+        channel.setMode(CompactChannel.MODE_COMPACT);
+
+        //100 identical values then a 100-step ramp: one literal, two runs
+        int[] values = new int[200];
+        for (int i = 0; i < 100; i++) {
+            values[i] = 500;
+            values[100 + i] = 500 + (i + 1) * 3;
+        }
+
+        byte[] bytes = encodeAll(channel, values);
+        assertTrue("expected a handful of bytes, got " + bytes.length, bytes.length <= 8);
+
+        channel.decode(bytes, 0, bytes.length);
+        assertDecodedEquals(values);
+    }
+
+    @Test
+    public void negotiation_fallsBackToRaw() {
+        CompactMux mux = new CompactMux();
+        CompactChannel channel = new CompactChannel(4, 2, collector);
+        mux.register(channel);
+
+        //a reply nobody asked for is ignored
+        mux.decode(new byte[]{CompactChannel.NEGOTIATE, 4, 1}, 0, 3);
+        assertEquals(CompactChannel.MODE_RAW, channel.getMode());
+        assertEquals(1, mux.getMalformed());
+
+        assertArrayEquals(new byte[]{CompactChannel.NEGOTIATE, 4, 1}, channel.negotiationRequest(CompactChannel.MODE_COMPACT));
+        assertTrue(channel.isAwaitingReply());
+
+        //device that doesn't know the mode answers with something else, so we stay raw
+        mux.decode(new byte[]{CompactChannel.NEGOTIATE, 4, 9}, 0, 3);
+        assertFalse(channel.isAwaitingReply());
+        assertEquals(CompactChannel.MODE_RAW, channel.getMode());
+
+        //raw int16 values, with a frame split across chunks
+        mux.decode(new byte[]{4, 4, (byte) 0xE8, 0x03}, 0, 4);
+        mux.decode(new byte[]{(byte) 0xFF, (byte) 0xFF}, 0, 2);
+        assertDecodedEquals(new int[]{1000, -1});
+    }
+
+    @Test
+    public void negotiationReply_splitAndAfterData_isFound() {
+        CompactMux mux = new CompactMux();
+        CompactChannel channel = new CompactChannel(6, 2, collector);
+        mux.register(channel);
+        channel.negotiationRequest(CompactChannel.MODE_COMPACT);
+
+        //a raw value still in flight, then the reply split three ways, then compact data
+        byte[] stream = {6, 2, 0x0A, 0x00, CompactChannel.NEGOTIATE, 6, 1, 6, 1, 0x50};
+        mux.decode(stream, 0, 5);
+        mux.decode(stream, 5, 1);
+        mux.decode(stream, 6, 4);
+
+        assertEquals(CompactChannel.MODE_COMPACT, channel.getMode());
+        assertFalse(channel.isAwaitingReply());
+        assertEquals(0, mux.getMalformed());
+
+        //10 raw, then a compact delta of +20 from the reset previous of 0
+        assertDecodedEquals(new int[]{10, 20});
+    }
+
+    @Test
+    public void sendsDuringNegotiation_matchTheDevicesSwitchPoint() throws Exception {
+        final CompactMux hostMux = new CompactMux(), deviceMux = new CompactMux();
+        final CompactChannel host = new CompactChannel(3, 2, null);
+        final CompactChannel device = new CompactChannel(3, 2, collector);
+        hostMux.register(host);
+        deviceMux.register(device);
+
+        //the device side switches its decoding where the request shows up in the stream, which to its mux looks just
+        //like the reply it's waiting for
+        device.negotiationRequest(CompactChannel.MODE_COMPACT);
+
+        final LinkedBlockingQueue<byte[]> link = new LinkedBlockingQueue<>();
+        final List<Integer> accepted = new ArrayList<>();
+        final CompactMux.IFrameSink sink = new CompactMux.IFrameSink() {
+            @Override
+            public boolean offer(byte[] frames) {
+                link.add(frames);
+                return true;
+            }
+        };
+        final AtomicBoolean done = new AtomicBoolean(false);
+
+        //UI thread hammering sendValues() the whole time, refused or not
+        Thread sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 20000; i++) {
+                    int[] batch = {i / 7, i / 7 + 1, i / 7 + 1};
+                    synchronized (host) {
+                        if (hostMux.send(host, batch, 0, batch.length, sink)) {
+                            for (int value : batch) {
+                                accepted.add(value);
+                            }
+                        }
+                        else {
+                            i--;
+                        }
+                    }
+                }
+                done.set(true);
+            }
+        });
+        sender.start();
+
+        //the request goes out somewhere in the middle
+        while (true) {
+            synchronized (host) {
+                if (accepted.size() > 3000) {
+                    break;
+                }
+            }
+            Thread.sleep(1);
+        }
+        link.add(host.negotiationRequest(CompactChannel.MODE_COMPACT));
+
+        //device thread: decode in order, and answer the request right when it's seen, like a reading thread would
+        boolean replied = false;
+        while (!done.get() || !link.isEmpty()) {
+            byte[] bytes = link.poll(10, TimeUnit.MILLISECONDS);
+            if (bytes == null) {
+                continue;
+            }
+            deviceMux.decode(bytes, 0, bytes.length);
+            if (!replied && device.getMode() == CompactChannel.MODE_COMPACT) {
+                replied = true;
+                hostMux.decode(new byte[]{CompactChannel.NEGOTIATE, 3, 1}, 0, 3);
+            }
+        }
+        sender.join();
+
+        assertTrue(replied);
+        assertEquals(CompactChannel.MODE_COMPACT, host.getMode());
+        assertEquals(0, deviceMux.getMalformed());
+        synchronized (host) {
+            assertDecodedEquals(toArray(accepted));
+        }
+    }
+
+    @Test
+    public void refusedFrame_rollsTheEncoderBack() {
+        CompactMux hostMux = new CompactMux(), deviceMux = new CompactMux();
+        CompactChannel host = new CompactChannel(1, 2, null), device = new CompactChannel(1, 2, collector);
+        host.setMode(CompactChannel.MODE_COMPACT);
+        device.setMode(CompactChannel.MODE_COMPACT);
+        deviceMux.register(device);
+
+        byte[] first = hostMux.frame(host, new int[]{100}, 0, 1);
+        assertFalse(hostMux.send(host, new int[]{500}, 0, 1, new CompactMux.IFrameSink() {
+            @Override
+            public boolean offer(byte[] frames) {
+                return false;
+            }
+        }));
+        byte[] second = hostMux.frame(host, new int[]{101}, 0, 1);
+
+        deviceMux.decode(first, 0, first.length);
+        deviceMux.decode(second, 0, second.length);
+        assertDecodedEquals(new int[]{100, 101});
+    }
+
+    @Test
+    public void lostFrame_healsAtTheNextKeyframe() {
+        CompactMux hostMux = new CompactMux(), deviceMux = new CompactMux();
+        CompactChannel host = new CompactChannel(1, 2, null), device = new CompactChannel(1, 2, collector);
+        host.setMode(CompactChannel.MODE_COMPACT);
+        host.setKeyframeInterval(4);
+        device.setMode(CompactChannel.MODE_COMPACT);
+        deviceMux.register(device);
+
+        //frame for 1 gets lost without anyone noticing, so 2 and 3 come out one short
+        for (int i = 0; i < 6; i++) {
+            byte[] frame = hostMux.frame(host, new int[]{i}, 0, 1);
+            if (i != 1) {
+                deviceMux.decode(frame, 0, frame.length);
+            }
+        }
+        assertDecodedEquals(new int[]{0, 1, 2, 4, 5});
+
+        //a drop the engine told us about heals right away
+        decoded.clear();
+        hostMux.frame(host, new int[]{50}, 0, 1);
+        host.requestKeyframe();
+        byte[] frame = hostMux.frame(host, new int[]{-7}, 0, 1);
+        assertEquals(0, frame[1]);
+        deviceMux.decode(frame, 0, frame.length);
+        assertDecodedEquals(new int[]{-7});
+        assertEquals(0, deviceMux.getMalformed());
+    }
+
+    @Test
+    public void twoChannels_shareTheLink() {
+        final List<Integer> other = new ArrayList<>();
+        CompactMux sender = new CompactMux(), receiver = new CompactMux();
+        CompactChannel aOut = new CompactChannel(1, 2, null), bOut = new CompactChannel(2, 4, null);
+        CompactChannel aIn = new CompactChannel(1, 2, collector);
+        CompactChannel bIn = new CompactChannel(2, 4, new CompactCodec.IValueListener() {
+            @Override
+            public void onValue(int value) {
+                other.add(value);
+            }
+        });
+        aOut.setMode(CompactChannel.MODE_COMPACT);
+        aIn.setMode(CompactChannel.MODE_COMPACT);
+        receiver.register(aIn);
+        receiver.register(bIn);
+
+        int[] a = sensorStream(600, new Random(3));
+        int[] b = {7, -70000, 123456};
+        byte[] first = sender.frame(aOut, a, 0, 300);
+        byte[] second = sender.frame(bOut, b, 0, b.length);
+        byte[] third = sender.frame(aOut, a, 300, 300);
+
+        ByteBuffer link = ByteBuffer.allocate(first.length + second.length + third.length);
+        link.put(first).put(second).put(third);
+        byte[] bytes = link.array();
+        for (int off = 0; off < bytes.length; off += 7) {
+            receiver.decode(bytes, off, Math.min(7, bytes.length - off));
+        }
+
+        assertDecodedEquals(a);
+        assertEquals(3, other.size());
+        assertEquals(-70000, (long) other.get(1));
+        assertEquals(0, receiver.getMalformed());
+    }
+
+    @Test
+    public void malformedVarint_resyncsInsteadOfThrowing() {
+        CompactCodec.Decoder decoder = new CompactCodec.Decoder(collector);
+
+        //+1, then a line glitch of continuation bytes, then +2
+        decoder.decode(new byte[]{0x04, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x00, 0x08}, 0, 8);
+
+        assertTrue(decoder.getMalformed() > 0);
+        assertEquals(3, (long) decoded.get(decoded.size() - 1));
+    }
+
+    @Test
+    public void corruptRunLength_isCapped() {
+        CompactCodec.Decoder decoder = new CompactCodec.Decoder(collector);
+
+        //run header for delta 0, with a count of 2^28
+        decoder.decode(new byte[]{0x01, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01}, 0, 6);
+
+        assertEquals(0, decoded.size());
+        assertEquals(1, decoder.getMalformed());
+    }
+
+    @Test
+    public void slowLink_report() {
+        Random random = new Random(42);
+        String[] names = {"SeekBar (int16)", "Sensor (int16)"};
+        int[][] streams = {seekBarStream(20000, random), sensorStream(20000, random)};
+
+        for (int s = 0; s < streams.length; s++) {
+            int[] values = streams[s];
+
+            //every value sent on its own, the way sendValue() does for a control stream
+            long rawSingle = linkBytes(values, 1, false), compactSingle = linkBytes(values, 1, true);
+
+            //batches of 32 through sendValues(), where runs can form
+            long rawBatched = linkBytes(values, 32, false), compactBatched = linkBytes(values, 32, true);
+
+            System.out.println(String.format("%s, per value: %d -> %d bytes, %.2fx, %.0f -> %.0f samples/s at 9600 baud",
+                    names[s], rawSingle, compactSingle, (double) rawSingle / compactSingle,
+                    LINK_BYTES_PER_SEC * values.length / rawSingle, LINK_BYTES_PER_SEC * values.length / compactSingle));
+            System.out.println(String.format("%s, batches of 32: %d -> %d bytes, %.2fx, %.0f -> %.0f samples/s at 9600 baud",
+                    names[s], rawBatched, compactBatched, (double) rawBatched / compactBatched,
+                    LINK_BYTES_PER_SEC * values.length / rawBatched, LINK_BYTES_PER_SEC * values.length / compactBatched));
+
+            assertTrue(names[s] + " should compress per value", compactSingle < rawSingle);
+            assertTrue(names[s] + " should compress in batches", (double) rawBatched / compactBatched > 1.5);
+        }
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        int[] result = new int[values.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = values.get(i);
+        }
+        return result;
+    }
+
+    //bytes on the wire, mux framing included, sending values in batches of the given size
+    private static long linkBytes(int[] values, int batch, boolean compact) {
+        CompactMux mux = new CompactMux();
+        CompactChannel channel = new CompactChannel(0, 2, null);
+        if (compact) {
+            channel.setMode(CompactChannel.MODE_COMPACT);
+        }
+
+        long total = 0;
+        for (int off = 0; off < values.length; off += batch) {
+            total += mux.frame(channel, values, off, Math.min(batch, values.length - off)).length;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,197 @@
+package weiner.noah.usbscratch;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Random;
+
+/**
+ * Fake transport standing in for a device that echoes everything back, which misbehaves at configurable rates: writes
+ * that fail outright, get silently dropped or only partly taken, reads that fail or come back short, stalls on either
+ * side, and disconnects after which every call fails for good.
+ */
+public class FaultInjectingTransport implements ISerialTransport {
+    /**
+     * Per-call fault probabilities, plus the echo delay of the simulated device.
+     */
+    public static class Faults {
+        public double writeFailRate, dropRate, partialWriteRate;
+        public double readFailRate, partialReadRate;
+        public double stallRate;
+        public int stallMillis = 20;
+        public double disconnectRate;
+        public long echoDelayMicros = 200;
+
+        public static Faults none() {
+            return new Faults();
+        }
+
+        public static Faults typical() {
+            Faults f = new Faults();
+            f.writeFailRate = 0.02;
+            f.dropRate = 0.01;
+            f.partialWriteRate = 0.05;
+            f.readFailRate = 0.01;
+            f.partialReadRate = 0.05;
+            f.stallRate = 0.002;
+            f.disconnectRate = 0.0002;
+            return f;
+        }
+    }
+
+    private static final int MAX_PACKET = 64;
+
+    //how much echoed data the fake device will hold before it stops taking writes
+    private static final int MAX_PENDING_BYTES = 64 * 1024;
+
+    private final Faults faults;
+    private final Random random;
+
+    //echoed data on its way back to the host, each chunk with the time it becomes readable
+    private final ArrayDeque<Pending> toHost = new ArrayDeque<>();
+    private int pendingBytes = 0;
+
+    private volatile boolean disconnected = false, closed = false;
+
+    private static class Pending {
+        final byte[] data;
+        int offset;
+        final long dueNanos;
+
+        Pending(byte[] bytes, long due) {
+            data = bytes;
+            dueNanos = due;
+        }
+    }
+
+    public FaultInjectingTransport(Faults injectedFaults, long seed) {
+        faults = injectedFaults;
+        random = new Random(seed);
+    }
+
+    public boolean isDisconnected() {
+        return disconnected;
+    }
+
+    @Override
+    public int write(byte[] data, int offset, int length, int timeoutMillis) {
+        if (failed() || roll(faults.writeFailRate)) {
+            return -1;
+        }
+        if (roll(faults.stallRate)) {
+            sleep(faults.stallMillis);
+
+            //a stall longer than the timeout looks like a timed out transfer
+            if (faults.stallMillis >= timeoutMillis) {
+                return -1;
+            }
+        }
+        if (roll(faults.dropRate)) {
+            //device claims it got it, but it's gone
+            return length;
+        }
+
+        int taken = length;
+        if (length > 1 && roll(faults.partialWriteRate)) {
+            taken = 1 + random.nextInt(length - 1);
+        }
+
+        byte[] copy = new byte[taken];
+        System.arraycopy(data, offset, copy, 0, taken);
+        synchronized (toHost) {
+            if (pendingBytes + taken > MAX_PENDING_BYTES) {
+                return -1;
+            }
+            toHost.add(new Pending(copy, System.nanoTime() + faults.echoDelayMicros * 1000));
+            pendingBytes += taken;
+            toHost.notifyAll();
+        }
+        return taken;
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, int timeoutMillis) {
+        if (failed() || roll(faults.readFailRate)) {
+            return -1;
+        }
+        if (roll(faults.stallRate)) {
+            sleep(faults.stallMillis);
+        }
+
+        long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+        synchronized (toHost) {
+            while (true) {
+                if (closed) {
+                    return -1;
+                }
+
+                long now = System.nanoTime();
+                Pending head = toHost.peek();
+                if (head != null && head.dueNanos <= now) {
+                    int n = Math.min(Math.min(buffer.remaining(), MAX_PACKET), head.data.length - head.offset);
+                    if (n > 1 && roll(faults.partialReadRate)) {
+                        n = 1 + random.nextInt(n - 1);
+                    }
+                    buffer.put(head.data, head.offset, n);
+                    head.offset += n;
+                    pendingBytes -= n;
+                    if (head.offset == head.data.length) {
+                        toHost.poll();
+                    }
+                    return n;
+                }
+
+                if (now >= deadline) {
+                    return 0;
+                }
+
+                //wait for either the head to come due, something to arrive, or the timeout
+                long wait = (head != null ? Math.min(head.dueNanos, deadline) : deadline) - now;
+                try {
+                    toHost.wait(Math.max(1, wait / 1000000));
+                }
+                catch (InterruptedException e) {
+                    return -1;
+                }
+            }
+        }
+    }
+
+    @Override
+    public int getMaxPacketSize() {
+        return MAX_PACKET;
+    }
+
+    @Override
+    public void close() {
+        synchronized (toHost) {
+            closed = true;
+            toHost.clear();
+            pendingBytes = 0;
+            toHost.notifyAll();
+        }
+    }
+
+    private boolean failed() {
+        if (closed || disconnected) {
+            return true;
+        }
+        if (roll(faults.disconnectRate)) {
+            disconnected = true;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean roll(double rate) {
+        return rate > 0 && random.nextDouble() < rate;
+    }
+
+    private static void sleep(int millis) {
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
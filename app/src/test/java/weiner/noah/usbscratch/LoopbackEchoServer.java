@@ -0,0 +1,126 @@
+package weiner.noah.usbscratch;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/**
+ * Stand-in for a serial-to-TCP bridge with a board on the other end that echoes everything back. Listens on an ephemeral
+ * loopback port and serves every client from one selector thread.
+ */
+public class LoopbackEchoServer {
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final Thread thread;
+    private volatile boolean running = true, hangUp = false;
+
+    public LoopbackEchoServer() throws IOException {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    loop();
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "LoopbackEchoServer");
+        thread.start();
+    }
+
+    public InetSocketAddress getAddress() {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), server.socket().getLocalPort());
+    }
+
+    /**
+     * Drop every client connection, like the bridge going away.
+     */
+    public void hangUpAll() {
+        hangUp = true;
+        selector.wakeup();
+    }
+
+    public void close() throws InterruptedException {
+        running = false;
+        selector.wakeup();
+        thread.join();
+    }
+
+    private void loop() throws IOException {
+        while (running) {
+            selector.select();
+
+            if (hangUp) {
+                hangUp = false;
+                for (SelectionKey key : selector.keys()) {
+                    if (key.channel() instanceof SocketChannel) {
+                        key.channel().close();
+                    }
+                }
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+
+                if (key.isAcceptable()) {
+                    SocketChannel client = server.accept();
+                    if (client != null) {
+                        client.configureBlocking(false);
+                        client.socket().setTcpNoDelay(true);
+                        client.register(selector, SelectionKey.OP_READ, ByteBuffer.allocateDirect(64 * 1024));
+                    }
+                    continue;
+                }
+
+                SocketChannel client = (SocketChannel) key.channel();
+                ByteBuffer buffer = (ByteBuffer) key.attachment();
+                try {
+                    if (key.isReadable() && client.read(buffer) < 0) {
+                        client.close();
+                        continue;
+                    }
+
+                    buffer.flip();
+                    client.write(buffer);
+                    buffer.compact();
+
+                    //only read more once there's room, and only ask to write while something is left over
+                    int ops = 0;
+                    if (buffer.hasRemaining()) {
+                        ops |= SelectionKey.OP_READ;
+                    }
+                    if (buffer.position() > 0) {
+                        ops |= SelectionKey.OP_WRITE;
+                    }
+                    key.interestOps(ops);
+                }
+                catch (IOException e) {
+                    client.close();
+                }
+            }
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+    }
+}
@@ -0,0 +1,92 @@
+package weiner.noah.usbscratch;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the receive aggregation stage.
+ */
+public class ReadAggregatorTest {
+    private static final long MICROS = 1000L;
+
+    private final List<byte[]> chunks = new ArrayList<>();
+
+    private final ReadAggregator.IChunkListener collector = new ReadAggregator.IChunkListener() {
+        @Override
+        public void onChunk(byte[] data, int length) {
+            byte[] copy = new byte[length];
+            System.arraycopy(data, 0, copy, 0, length);
+            chunks.add(copy);
+        }
+    };
+
+    @Test
+    public void trickle_isDispatchedPerCompletion() {
+        ReadAggregator aggregator = new ReadAggregator(collector, 256, 1, 2000);
+
+        //one byte every 10ms, far slower than the 2ms timer
+        for (int i = 0; i < 10; i++) {
+            aggregator.offer(new byte[]{(byte) ('a' + i)}, 0, 1, i * 10000 * MICROS);
+        }
+
+        assertEquals(10, chunks.size());
+        assertEquals(1, aggregator.getThreshold());
+    }
+
+    @Test
+    public void burst_growsThresholdAndAggregates() {
+        ReadAggregator aggregator = new ReadAggregator(collector, 4096, 1, 2000);
+        byte[] packet = new byte[64];
+
+        //64 bytes every 100us for a while
+        for (int i = 0; i < 500; i++) {
+            aggregator.offer(packet, 0, packet.length, i * 100 * MICROS);
+        }
+
+        assertTrue("threshold should grow under a burst", aggregator.getThreshold() > 512);
+        assertTrue("should have dispatched far fewer chunks than completions", chunks.size() < 50);
+    }
+
+    @Test
+    public void latencyTimer_flushesPartialChunk() {
+        ReadAggregator aggregator = new ReadAggregator(collector, 4096, 1024, 500);
+
+        aggregator.offer("hi".getBytes(), 0, 2, 0);
+        assertEquals(0, chunks.size());
+        assertEquals(500 * MICROS, aggregator.nanosUntilDeadline(0));
+
+        assertFalse(aggregator.poll(499 * MICROS));
+        assertTrue(aggregator.poll(500 * MICROS));
+
+        assertEquals(1, chunks.size());
+        assertArrayEquals("hi".getBytes(), chunks.get(0));
+        assertEquals(-1, aggregator.nanosUntilDeadline(500 * MICROS));
+        assertEquals(1, aggregator.getTimerFlushes());
+    }
+
+    @Test
+    public void overflow_isSplitWithoutLosingBytes() {
+        ReadAggregator aggregator = new ReadAggregator(collector, 8, 8, 1000);
+        byte[] data = "0123456789abcdefXYZ".getBytes();
+
+        aggregator.offer(data, 0, data.length, 0);
+        aggregator.flush();
+
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        for (byte[] chunk : chunks) {
+            assertTrue(chunk.length <= 8);
+            joined.write(chunk, 0, chunk.length);
+        }
+        assertArrayEquals(data, joined.toByteArray());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badThreshold_isRejected() {
+        new ReadAggregator(collector, 8, 16, 1000);
+    }
+}
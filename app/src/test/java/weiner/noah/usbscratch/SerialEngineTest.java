@@ -0,0 +1,209 @@
+package weiner.noah.usbscratch;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for what the engine does with messages that can't be written.
+ */
+public class SerialEngineTest {
+    //transport that takes the first few bytes written and then fails every write, optionally only after blocking for
+    //the whole timeout like a stalled device would
+    private static class StallingTransport implements ISerialTransport {
+        private int accept;
+        boolean blockOnFailure = false;
+        volatile byte firstByteWritten;
+
+        StallingTransport(int acceptBytes) {
+            accept = acceptBytes;
+        }
+
+        @Override
+        public synchronized int write(byte[] data, int offset, int length, int timeoutMillis) {
+            if (accept == 0) {
+                if (blockOnFailure) {
+                    sleep(timeoutMillis);
+                }
+                return -1;
+            }
+            int n = Math.min(accept, length);
+            accept -= n;
+            firstByteWritten = data[offset];
+            return n;
+        }
+
+        @Override
+        public int read(ByteBuffer buffer, int timeoutMillis) {
+            sleep(timeoutMillis);
+            return 0;
+        }
+
+        private static void sleep(int millis) {
+            try {
+                Thread.sleep(millis);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public int getMaxPacketSize() {
+            return 64;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static final SerialEngine.IReceiveHandler IGNORE = new SerialEngine.IReceiveHandler() {
+        @Override
+        public void onReceive(ByteBuffer data, long receiveNanos) {
+        }
+
+        @Override
+        public void onIdle(long nowNanos) {
+        }
+
+        @Override
+        public long getWaitNanos(long nowNanos) {
+            return -1;
+        }
+    };
+
+    private static class Listener implements SerialEngine.IEngineListener {
+        final CountDownLatch disconnected = new CountDownLatch(1);
+
+        @Override
+        public void onStopped() {
+        }
+
+        @Override
+        public void onDisconnected() {
+            disconnected.countDown();
+        }
+    }
+
+    @Test
+    public void messageCutShort_disconnectsAndReportsTheDrop() throws Exception {
+        Listener listener = new Listener();
+        SerialEngine engine = new SerialEngine(new StallingTransport(3), IGNORE, listener, 16);
+        engine.setMaxBackoff(1);
+
+        final int[] dropped = {-1};
+        final AtomicInteger drops = new AtomicInteger();
+        SerialEngine.IMessageCallback callback = new SerialEngine.IMessageCallback() {
+            @Override
+            public void onWriting(byte[] data) {
+            }
+
+            @Override
+            public void onDropped(byte[] data, int bytesWritten) {
+                if (drops.getAndIncrement() == 0) {
+                    dropped[0] = bytesWritten;
+                }
+            }
+        };
+
+        engine.start();
+        assertTrue(engine.send(new byte[]{1, 2, 3, 4, 5, 6}, callback));
+        assertTrue(engine.send(new byte[]{7, 8}, callback));
+
+        //the first message only got halfway, so the second one mustn't go out after it
+        assertTrue(listener.disconnected.await(5, TimeUnit.SECONDS));
+        engine.stop();
+        assertEquals(3, dropped[0]);
+        assertEquals(2, drops.get());
+        assertEquals(3, engine.getBytesSent());
+    }
+
+    @Test
+    public void stampBeforeWrite_isWhatGoesOut() throws Exception {
+        StallingTransport transport = new StallingTransport(100);
+        SerialEngine engine = new SerialEngine(transport, IGNORE, new Listener(), 16);
+        final CountDownLatch written = new CountDownLatch(1);
+
+        engine.start();
+        assertTrue(engine.send(new byte[]{0}, new SerialEngine.IMessageCallback() {
+            @Override
+            public void onWriting(byte[] data) {
+                data[0] = 42;
+                written.countDown();
+            }
+
+            @Override
+            public void onDropped(byte[] data, int bytesWritten) {
+            }
+        }));
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+        engine.stop();
+        assertEquals(42, transport.firstByteWritten);
+    }
+
+    @Test
+    public void wholeMessageLost_isReportedWithoutDisconnecting() throws Exception {
+        Listener listener = new Listener();
+        SerialEngine engine = new SerialEngine(new StallingTransport(0), IGNORE, listener, 16);
+        engine.setMaxBackoff(1);
+
+        final CountDownLatch dropped = new CountDownLatch(1);
+        engine.start();
+        assertTrue(engine.send(new byte[]{1, 2}, new SerialEngine.IMessageCallback() {
+            @Override
+            public void onWriting(byte[] data) {
+            }
+
+            @Override
+            public void onDropped(byte[] data, int bytesWritten) {
+                assertEquals(0, bytesWritten);
+                dropped.countDown();
+            }
+        }));
+
+        assertTrue(dropped.await(5, TimeUnit.SECONDS));
+        assertFalse(engine.isDisconnected());
+        engine.stop();
+    }
+
+    @Test
+    public void stop_withStalledDevice_givesUpDrainingInTime() throws Exception {
+        StallingTransport transport = new StallingTransport(0);
+        transport.blockOnFailure = true;
+        SerialEngine engine = new SerialEngine(transport, IGNORE, new Listener(), 64);
+        engine.setStopTimeout(300);
+
+        final AtomicInteger dropped = new AtomicInteger();
+        SerialEngine.IMessageCallback callback = new SerialEngine.IMessageCallback() {
+            @Override
+            public void onWriting(byte[] data) {
+            }
+
+            @Override
+            public void onDropped(byte[] data, int bytesWritten) {
+                dropped.incrementAndGet();
+            }
+        };
+
+        //a full queue that would take minutes to get through at a second per attempt
+        engine.start();
+        for (int i = 0; i < 64; i++) {
+            engine.send(new byte[]{(byte) i}, callback);
+        }
+
+        long start = System.nanoTime();
+        engine.stop();
+        long tookMillis = (System.nanoTime() - start) / 1000000;
+
+        //the write already under way when stop() came in may run out its own timeout, nothing after it may
+        assertTrue("stop took " + tookMillis + " ms", tookMillis < 1000 + 300 + 200);
+        assertEquals(64, dropped.get());
+        assertFalse(engine.isDisconnected());
+    }
+}
@@ -0,0 +1,230 @@
+package weiner.noah.usbscratch;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Long-running soak test of SerialEngine over a FaultInjectingTransport. Pushes sequence-numbered, timestamped frames
+ * through the fake echo device as fast as the engine will take them, reconnects with a fresh transport whenever the
+ * engine gives up on one, and prints throughput, latency percentiles, heap use and live thread count every interval so
+ * that slow leaks show up as a trend.
+ */
+public class SoakHarness {
+    //frame: 4 magic bytes, int sequence number, long send time in nanos
+    private static final int FRAME_SIZE = 16;
+    private static final byte[] MAGIC = {(byte) 0xA5, 0x5A, (byte) 0xC3, 0x3C};
+
+    /**
+     * What the run looked like, for asserting on.
+     */
+    public static class Result {
+        public long framesSent, framesReceived, framesLost, framesCorrupt;
+        public volatile long bytesReceived;
+        public long reconnects, shortWrites, writeFailures, droppedMessages, readErrors;
+        public int startThreads, endThreads, maxThreads;
+        public long startHeap, endHeap;
+        public LatencyStats.Series latency;
+    }
+
+    private final FaultInjectingTransport.Faults faults;
+    private final long durationMillis, reportMillis;
+    private final PrintStream out;
+
+    private final LatencyStats stats = new LatencyStats(8192);
+    private final Result result = new Result();
+
+    private volatile boolean disconnected;
+
+    //fault counters of engines that have already been torn down
+    private long doneShortWrites, doneWriteFailures, doneDropped, doneReadErrors;
+
+    public SoakHarness(FaultInjectingTransport.Faults injectedFaults, long durationMs, long reportMs, PrintStream report) {
+        faults = injectedFaults;
+        durationMillis = durationMs;
+        reportMillis = reportMs;
+        out = report;
+    }
+
+    public Result run() throws InterruptedException {
+        result.latency = stats.get(LatencyStats.ROUND_TRIP);
+        long start = System.currentTimeMillis(), nextReport = start + reportMillis;
+        long seed = 1;
+        int sequence = 0;
+
+        settle();
+        result.startThreads = Thread.activeCount();
+        result.startHeap = usedHeap();
+
+        SerialEngine engine = newEngine(seed++);
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        while (System.currentTimeMillis() - start < durationMillis) {
+            if (disconnected) {
+                //tear down and come back on a fresh transport, like replugging the board
+                engine.stop();
+                collect(engine);
+                engine = newEngine(seed++);
+                result.reconnects++;
+            }
+
+            frame.clear();
+            frame.put(MAGIC).putInt(sequence).putLong(System.nanoTime());
+            if (engine.send(frame.array().clone())) {
+                sequence++;
+                result.framesSent++;
+            }
+            else {
+                //queue full, let the writer catch up
+                Thread.sleep(1);
+            }
+
+            if (System.currentTimeMillis() >= nextReport) {
+                report(start, engine);
+                nextReport += reportMillis;
+            }
+        }
+
+        //let whatever is still queued or echoing come back before counting
+        drain();
+        engine.stop();
+        collect(engine);
+
+        settle();
+        result.endThreads = Thread.activeCount();
+        result.endHeap = usedHeap();
+        report(start, null);
+        return result;
+    }
+
+    private SerialEngine newEngine(long seed) {
+        disconnected = false;
+        final FaultInjectingTransport transport = new FaultInjectingTransport(faults, seed);
+
+        SerialEngine engine = new SerialEngine(transport, new FrameReceiver(), new SerialEngine.IEngineListener() {
+            @Override
+            public void onStopped() {
+                transport.close();
+            }
+
+            @Override
+            public void onDisconnected() {
+                transport.close();
+                disconnected = true;
+            }
+        }, 256);
+
+        //short backoff so a dead transport is noticed quickly
+        engine.setMaxBackoff(10);
+        engine.setWriteTimeout(50);
+        engine.start();
+        return engine;
+    }
+
+    private void collect(SerialEngine engine) {
+        doneShortWrites += engine.getShortWrites();
+        doneWriteFailures += engine.getWriteFailures();
+        doneDropped += engine.getDroppedMessages();
+        doneReadErrors += engine.getReadErrors();
+        result.shortWrites = doneShortWrites;
+        result.writeFailures = doneWriteFailures;
+        result.droppedMessages = doneDropped;
+        result.readErrors = doneReadErrors;
+    }
+
+    private void report(long start, SerialEngine live) {
+        double seconds = (System.currentTimeMillis() - start) / 1000.0;
+        int threads = Thread.activeCount();
+        result.maxThreads = Math.max(result.maxThreads, threads);
+
+        LatencyStats.Series latency = result.latency;
+        out.println(String.format("[%8.1fs] %9d frames (%7.0f/s, %6.1f KB/s), lost %d, corrupt %d, p50 %d us, p99 %d us, max %d us, "
+                        + "reconnects %d, short writes %d, write fails %d, read errors %d, heap %d KB, threads %d",
+                seconds, result.framesReceived, result.framesReceived / seconds, result.bytesReceived / seconds / 1024,
+                result.framesLost, result.framesCorrupt, latency.percentile(50), latency.percentile(99), latency.getCount() == 0 ? 0 : latency.getMax(),
+                result.reconnects, doneShortWrites + (live == null ? 0 : live.getShortWrites()),
+                doneWriteFailures + (live == null ? 0 : live.getWriteFailures()),
+                doneReadErrors + (live == null ? 0 : live.getReadErrors()), usedHeap() / 1024, threads));
+    }
+
+    //wait until the echoed stream has gone quiet
+    private void drain() throws InterruptedException {
+        long last = -1;
+        while (result.bytesReceived != last) {
+            last = result.bytesReceived;
+            Thread.sleep(100);
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    //give exited threads a moment to go away and the collector a chance to run, so the snapshots are comparable
+    private static void settle() throws InterruptedException {
+        System.gc();
+        Thread.sleep(200);
+    }
+
+    //reassembles frames out of the echoed stream, resyncing on the magic after a drop or a truncated frame
+    private class FrameReceiver implements SerialEngine.IReceiveHandler {
+        private final ByteBuffer frame = ByteBuffer.allocate(FRAME_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private int expected = -1;
+
+        @Override
+        public void onReceive(ByteBuffer data, long receiveNanos) {
+            result.bytesReceived += data.remaining();
+            while (data.hasRemaining()) {
+                byte b = data.get();
+                int pos = frame.position();
+
+                if (pos < MAGIC.length && b != MAGIC[pos]) {
+                    //out of sync, start over (this byte might itself begin a frame)
+                    frame.clear();
+                    if (b == MAGIC[0]) {
+                        frame.put(b);
+                    }
+                    continue;
+                }
+
+                frame.put(b);
+                if (!frame.hasRemaining()) {
+                    onFrame(frame.getInt(4), frame.getLong(8), receiveNanos);
+                    frame.clear();
+                }
+            }
+        }
+
+        private void onFrame(int sequence, long sentNanos, long receiveNanos) {
+            //a frame cut short by a failed write gets the next frame's bytes glued on, which shows up as nonsense here
+            if (sentNanos > receiveNanos || receiveNanos - sentNanos > 60000000000L || sequence < expected) {
+                result.framesCorrupt++;
+                return;
+            }
+
+            result.framesReceived++;
+            stats.record(LatencyStats.ROUND_TRIP, (receiveNanos - sentNanos) / 1000);
+            if (expected >= 0 && sequence > expected) {
+                result.framesLost += sequence - expected;
+            }
+            expected = sequence + 1;
+        }
+
+        @Override
+        public void onIdle(long nowNanos) {
+        }
+
+        @Override
+        public long getWaitNanos(long nowNanos) {
+            return -1;
+        }
+    }
+
+    //run standalone for as long as you like: SoakHarness <minutes> [report seconds]
+    public static void main(String[] args) throws InterruptedException {
+        long minutes = args.length > 0 ? Long.parseLong(args[0]) : 60;
+        long reportSeconds = args.length > 1 ? Long.parseLong(args[1]) : 60;
+        new SoakHarness(FaultInjectingTransport.Faults.typical(), minutes * 60000, reportSeconds * 1000, System.out).run();
+    }
+}
@@ -0,0 +1,229 @@
+package weiner.noah.usbscratch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local tests and a throughput benchmark for the socket backend, against a loopback echo server standing in for a
+ * serial-to-TCP bridge.
+ */
+public class SocketTransportTest {
+    private LoopbackEchoServer server;
+    private SocketSelectorLoop loop;
+    private final List<SerialEngine> engines = new ArrayList<>();
+
+    //collects everything an engine receives
+    private static class Collector implements SerialEngine.IReceiveHandler, SerialEngine.IEngineListener {
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        volatile boolean disconnected = false, stopped = false;
+
+        @Override
+        public synchronized void onReceive(ByteBuffer data, long receiveNanos) {
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            received.write(bytes, 0, bytes.length);
+            notifyAll();
+        }
+
+        @Override
+        public void onIdle(long nowNanos) {
+        }
+
+        @Override
+        public long getWaitNanos(long nowNanos) {
+            return -1;
+        }
+
+        @Override
+        public void onStopped() {
+            stopped = true;
+        }
+
+        @Override
+        public synchronized void onDisconnected() {
+            disconnected = true;
+            notifyAll();
+        }
+
+        synchronized boolean awaitBytes(int count, long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (received.size() < count && System.currentTimeMillis() < deadline) {
+                wait(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+            return received.size() >= count;
+        }
+
+        synchronized byte[] bytes() {
+            return received.toByteArray();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LoopbackEchoServer();
+        loop = new SocketSelectorLoop();
+        loop.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (SerialEngine engine : engines) {
+            engine.stop();
+        }
+        loop.stop();
+        server.close();
+    }
+
+    private SerialEngine open(Collector collector) throws Exception {
+        SocketTransport transport = loop.connect(server.getAddress(), 16 * 1024);
+        assertTrue(transport.awaitConnected(2000));
+
+        SerialEngine engine = new SerialEngine(transport, collector, collector, 1024);
+        engine.start();
+        engines.add(engine);
+        return engine;
+    }
+
+    private static byte[] pattern(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+
+    @Test
+    public void roundTrip_throughEngine() throws Exception {
+        Collector collector = new Collector();
+        SerialEngine engine = open(collector);
+
+        assertTrue(engine.send("hello bridge".getBytes()));
+        assertTrue(collector.awaitBytes(12, 2000));
+        assertArrayEquals("hello bridge".getBytes(), collector.bytes());
+    }
+
+    @Test
+    public void manyConnections_shareOneSelectorThread() throws Exception {
+        int count = 32;
+        List<Collector> collectors = new ArrayList<>();
+        for (int c = 0; c < count; c++) {
+            Collector collector = new Collector();
+            SerialEngine engine = open(collector);
+            collectors.add(collector);
+
+            //each connection gets its own pattern so crossed wires would show
+            byte[] data = pattern(20000, c);
+            for (int off = 0; off < data.length; off += 500) {
+                while (!engine.send(Arrays.copyOfRange(data, off, off + 500))) {
+                    Thread.sleep(1);
+                }
+            }
+        }
+
+        assertEquals(count, loop.getConnectionCount());
+        for (int c = 0; c < count; c++) {
+            assertTrue(collectors.get(c).awaitBytes(20000, 5000));
+            assertArrayEquals(pattern(20000, c), collectors.get(c).bytes());
+        }
+    }
+
+    @Test
+    public void bridgeHangUp_disconnectsEngine() throws Exception {
+        Collector collector = new Collector();
+        SerialEngine engine = open(collector);
+        engine.setMaxBackoff(5);
+
+        server.hangUpAll();
+        synchronized (collector) {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!collector.disconnected && System.currentTimeMillis() < deadline) {
+                collector.wait(100);
+            }
+        }
+        assertTrue(collector.disconnected);
+        assertTrue(engine.isDisconnected());
+
+        //reaping the threads after a disconnect still reports the stop
+        engine.stop();
+        assertTrue(collector.stopped);
+    }
+
+    @Test
+    public void connectQueuedAtStop_isClosedByTheSweep() throws Exception {
+        //the registration is most likely still queued when the loop stops, it must not be left open
+        SocketTransport transport = loop.connect(server.getAddress(), 1024);
+        loop.stop();
+
+        assertTrue(transport.isClosed());
+        assertEquals(-1, transport.read(ByteBuffer.allocate(16), 100));
+        assertEquals(0, loop.getConnectionCount());
+    }
+
+    @Test
+    public void loopStopped_closeAndConnectStillClose() throws Exception {
+        Collector collector = new Collector();
+        SerialEngine engine = open(collector);
+        loop.stop();
+
+        //the engine sees the socket go away instead of reading nothing forever
+        synchronized (collector) {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!collector.disconnected && System.currentTimeMillis() < deadline) {
+                collector.wait(100);
+            }
+        }
+        assertTrue(collector.disconnected);
+
+        SocketTransport late = loop.connect(server.getAddress(), 1024);
+        assertTrue(late.isClosed());
+        late.close();
+        assertFalse(late.awaitConnected(100));
+    }
+
+    @Test
+    public void throughput_benchmark() throws Exception {
+        int[] connectionCounts = {1, 8};
+        int perConnection = 8 * 1024 * 1024;
+        byte[] chunk = pattern(4096, 7);
+
+        for (int count : connectionCounts) {
+            List<Collector> collectors = new ArrayList<>();
+            List<SerialEngine> batch = new ArrayList<>();
+            for (int c = 0; c < count; c++) {
+                Collector collector = new Collector();
+                collectors.add(collector);
+                batch.add(open(collector));
+            }
+
+            long start = System.nanoTime();
+            for (int sent = 0; sent < perConnection; sent += chunk.length) {
+                for (SerialEngine engine : batch) {
+                    while (!engine.send(chunk)) {
+                        Thread.sleep(0, 100000);
+                    }
+                }
+            }
+            for (Collector collector : collectors) {
+                assertTrue(collector.awaitBytes(perConnection, 30000));
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            System.out.println(String.format("Socket echo, %d connection(s) on one selector thread: %.1f MB/s total",
+                    count, (double) perConnection * count / seconds / (1024 * 1024)));
+
+            for (SerialEngine engine : batch) {
+                engine.stop();
+                engines.remove(engine);
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package weiner.noah.usbscratch;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for decoding telemetry records into sample rings.
+ */
+public class TelemetryDecoderTest {
+    private final SampleSchema schema = new SampleSchema(ByteOrder.LITTLE_ENDIAN,
+            SampleSchema.FieldType.INT16, SampleSchema.FieldType.INT32, SampleSchema.FieldType.FLOAT32);
+
+    private byte[] records(int count) {
+        ByteBuffer out = ByteBuffer.allocate(count * schema.getRecordSize()).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < count; i++) {
+            out.putShort((short) -i);
+            out.putInt(i * 100000);
+            out.putFloat(i + 0.5f);
+        }
+        return out.array();
+    }
+
+    @Test
+    public void schema_packsFieldsBackToBack() {
+        assertEquals(10, schema.getRecordSize());
+        assertEquals(0, schema.getOffset(0));
+        assertEquals(2, schema.getOffset(1));
+        assertEquals(6, schema.getOffset(2));
+    }
+
+    @Test
+    public void records_splitAcrossChunks_areReassembled() {
+        TelemetryDecoder decoder = new TelemetryDecoder(schema, 64);
+        byte[] data = records(20);
+
+        //feed in awkward 7-byte pieces so records straddle every boundary
+        for (int off = 0; off < data.length; off += 7) {
+            decoder.decode(data, off, Math.min(7, data.length - off));
+        }
+
+        assertEquals(20, decoder.getRecordsDecoded());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(-i, decoder.ring(0).get(i), 0);
+            assertEquals(i * 100000, decoder.ring(1).get(i), 0);
+            assertEquals(i + 0.5, decoder.ring(2).get(i), 0);
+        }
+    }
+
+    @Test
+    public void window_statsCoverOnlyTheLastSamples() {
+        TelemetryDecoder decoder = new TelemetryDecoder(schema, 8);
+        byte[] data = records(20);
+        decoder.decode(data, 0, data.length);
+
+        SampleRing ring = decoder.ring(2);
+        assertEquals(8, ring.size());
+        assertEquals(19.5, ring.latest(), 0);
+
+        //last 4 of 0.5..19.5
+        SampleRing.Window window = ring.last(4);
+        assertEquals(4, window.size());
+        assertEquals(16.5, window.get(0), 0);
+        assertEquals(16.5, window.min(), 0);
+        assertEquals(19.5, window.max(), 0);
+        assertEquals(18.0, window.mean(), 1e-9);
+
+        //asking for more than the capacity gets clamped
+        assertEquals(8, ring.last(100).size());
+    }
+
+    @Test
+    public void reset_dropsPartialRecord() {
+        TelemetryDecoder decoder = new TelemetryDecoder(schema, 8);
+        byte[] data = records(2);
+
+        //half a record from a stream that went away, then a fresh stream
+        decoder.decode(data, 0, 5);
+        decoder.reset();
+        decoder.decode(data, 0, data.length);
+
+        assertEquals(2, decoder.getRecordsDecoded());
+        assertEquals(0, decoder.ring(0).get(0), 0);
+        assertEquals(-1, decoder.ring(0).get(1), 0);
+    }
+
+    //same fields, but each record framed by a two byte marker and a checksum
+    private final SampleSchema framed = new SampleSchema(ByteOrder.LITTLE_ENDIAN, new byte[]{(byte) 0xA5, 0x5A}, true,
+            SampleSchema.FieldType.INT16, SampleSchema.FieldType.INT32, SampleSchema.FieldType.FLOAT32);
+
+    private byte[] framedRecord(int i) {
+        ByteBuffer out = ByteBuffer.allocate(framed.getRecordSize()).order(ByteOrder.LITTLE_ENDIAN);
+        out.put((byte) 0xA5).put((byte) 0x5A).putShort((short) -i).putInt(i * 100000).putFloat(i + 0.5f);
+        out.put(framed.checksum(out.array(), 0));
+        return out.array();
+    }
+
+    @Test
+    public void framedSchema_addsMarkerAndChecksum() {
+        assertEquals(13, framed.getRecordSize());
+        assertEquals(2, framed.getOffset(0));
+        assertTrue(framed.isFramed());
+        assertFalse(schema.isFramed());
+    }
+
+    @Test
+    public void strayBytes_areSkippedAndCounted() {
+        TelemetryDecoder decoder = new TelemetryDecoder(framed, 64);
+        java.io.ByteArrayOutputStream stream = new java.io.ByteArrayOutputStream();
+        for (int i = 0; i < 10; i++) {
+            byte[] record = framedRecord(i);
+            stream.write(record, 0, record.length);
+
+            //echoed SeekBar values and a kill signal land between some records, one of them looking like a marker
+            if (i == 2) {
+                stream.write(0x42);
+            }
+            if (i == 5) {
+                stream.write(new byte[]{(byte) 0xFF, (byte) 0xA5}, 0, 2);
+            }
+        }
+        byte[] data = stream.toByteArray();
+
+        //awkward pieces, so the stray bytes land in the carried-over record as well as in place
+        for (int off = 0; off < data.length; off += 6) {
+            decoder.decode(data, off, Math.min(6, data.length - off));
+        }
+
+        assertEquals(10, decoder.getRecordsDecoded());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(-i, decoder.ring(0).get(i), 0);
+            assertEquals(i * 100000, decoder.ring(1).get(i), 0);
+            assertEquals(i + 0.5, decoder.ring(2).get(i), 0);
+        }
+        assertTrue(decoder.getMisalignedRecords() >= 2);
+        assertEquals(3, decoder.getBytesSkipped());
+    }
+
+    @Test
+    public void corruptRecord_failsChecksumAndIsDropped() {
+        TelemetryDecoder decoder = new TelemetryDecoder(framed, 64);
+        byte[] bad = framedRecord(1);
+        bad[4] ^= 0x10;
+
+        decoder.decode(framedRecord(0), 0, framed.getRecordSize());
+        decoder.decode(bad, 0, bad.length);
+        decoder.decode(framedRecord(2), 0, framed.getRecordSize());
+
+        assertEquals(2, decoder.getRecordsDecoded());
+        assertEquals(-2, decoder.ring(0).get(1), 0);
+        assertEquals(1, decoder.getMisalignedRecords());
+        assertEquals(framed.getRecordSize(), decoder.getBytesSkipped());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void emptyWindow_hasNoStats() {
+        new SampleRing(SampleSchema.FieldType.INT16, 4).last(4).mean();
+    }
+}